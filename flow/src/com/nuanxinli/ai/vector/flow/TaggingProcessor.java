@@ -0,0 +1,460 @@
+package com.nuanxinli.ai.vector.flow;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+
+import com.nuanxinli.ai.vector.TagIdVector;
+
+/**
+ * 流式打标签处理器
+ * 订阅一个TagIdVector的流, 按TagIdVector.tag的规则给每个向量打标签, 再把(id, tag, score)结果发布给下游
+ * 向量被攒成小批次(达到batchSize, 或第一个向量等待超过lingerMillis)后交给有界的工作线程池处理, 同时最多有parallelism个批次在处理
+ * 背压: 第一个下游订阅者订阅之前不向上游请求任何向量(没有订阅者时发布的结果会被丢弃); 之后在途的向量不超过 parallelism*batchSize,
+ * 只有结果发布给下游之后才继续请求; 下游处理慢时, 发布会在下游缓冲区满时阻塞工作线程, 上游也就不再收到请求, 所以对上游的请求跟随最慢的下游订阅者的需求
+ * 结果可以按输入顺序发布(ordered), 也可以按完成顺序发布
+ * 需要JDK 9以上的java.util.concurrent.Flow, 而基础jar面向Java 8, 所以作为单独的构件(sparse-vector-flow)发布
+ * a streaming tagging processor.
+ * subscribes to a stream of TagIdVectors, tags each one by the rule of TagIdVector.tag, and publishes (id, tag, score) results downstream.
+ * vectors are grouped into micro batches(of batchSize, or when the first one has waited lingerMillis), processed by a bounded worker pool,
+ * with at most parallelism batches in flight.
+ * backpressure: nothing is requested from upstream before the first downstream subscriber arrives(results published with no subscriber are dropped);
+ * after that at most parallelism*batchSize vectors are in flight, and more are requested only after results are published.
+ * publishing blocks workers when downstream buffers are full, so upstream receives no more requests, and demand on upstream follows the slowest downstream subscriber.
+ * results are published in input order(ordered) or in completion order.
+ * needs java.util.concurrent.Flow from JDK 9+ while the base jar targets Java 8, so it ships as a separate artifact(sparse-vector-flow).
+ * @author 宋辉(Song Hui)
+ *
+ */
+public class TaggingProcessor extends SubmissionPublisher<TaggingProcessor.Result> implements Flow.Processor<TagIdVector, TaggingProcessor.Result> {
+
+	/**
+	 * 打标签的结果
+	 * a tagging result
+	 */
+	public static final class Result {
+		private final TagIdVector vector;
+		private final String tag;
+		private final double score;
+
+		Result(TagIdVector vector, String tag, double score)
+		{
+			this.vector = vector;
+			this.tag = tag;
+			this.score = score;
+		}
+
+		public Long getId()
+		{
+			return vector.id;
+		}
+
+		public String getTag()
+		{
+			return tag;
+		}
+
+		/**
+		 * 向量与所选中心的点积
+		 * dot product of the vector and the chosen center
+		 */
+		public double getScore()
+		{
+			return score;
+		}
+
+		public TagIdVector getVector()
+		{
+			return vector;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Result{id="+vector.id+", tag="+tag+", score="+score+"}";
+		}
+	}
+
+	private final TagIdVector[] centers;
+	private final Double invalidValue;
+	private final Executor workers;
+	//由本处理器创建的线程池, 关闭时一并关闭 - pools created by this processor, shut down on close
+	private final ExecutorService ownWorkers;
+	private final ScheduledExecutorService lingerTimer;
+	private final int batchSize;
+	private final long lingerMillis;
+	private final boolean ordered;
+	//向上游请求的最大在途向量数 - max vectors in flight requested from upstream
+	private final int window;
+
+	//攒批次用的锁和状态 - lock and state for batching
+	private final Object batchLock = new Object();
+	private List<TagIdVector> batch;
+	private long nextBatchSeq;
+	private volatile boolean upstreamDone;
+
+	//发布结果用的锁和状态 - lock and state for publishing
+	//batchLock和emitLock从不嵌套获取, 对上游的request/cancel也不在任何一个锁中调用: 同步的上游可能在request中直接回调onNext/onComplete, 它们要获取batchLock
+	//batchLock and emitLock are never held together, and request/cancel on upstream are called inside neither of them:
+	//a synchronous upstream may call onNext/onComplete right inside request, and they take batchLock
+	private final Object emitLock = new Object();
+	private final Map<Long, List<Result>> finished = new HashMap<>();
+	private long nextEmitSeq;
+	private long emittedBatches;
+	//在emitLock中写入; onNext不加锁读取, 用于丢弃失败后仍在途的向量 - written inside emitLock; read by onNext without lock, to drop vectors still in flight after a failure
+	private volatile boolean failed;
+
+	//对上游的信号: 各线程只累加需求或标记取消, 由signalWip串行地发给上游(Reactive Streams 2.7), 不需要加锁
+	//signals to upstream: threads only add demand or mark the cancel, and signalWip serializes calls on upstream(Reactive Streams 2.7) without locks
+	private final AtomicReference<Flow.Subscription> upstream = new AtomicReference<>();
+	private final AtomicLong pendingDemand = new AtomicLong();
+	private final AtomicInteger signalWip = new AtomicInteger();
+	private volatile boolean cancelRequested;
+	//只在发信号的循环中读写 - only read and written by the signalling loop
+	private boolean cancelled;
+	//是否已经向上游请求了第一个窗口 - whether the first window has been requested from upstream
+	private final AtomicBoolean started = new AtomicBoolean();
+
+	private static Logger logger = Logger.getLogger(TaggingProcessor.class);
+
+	/**
+	 * 初始化处理器, 创建parallelism个线程的工作线程池
+	 * constructor with 6 parameters, creates a worker pool of parallelism threads
+	 * @param centers 给定的中心向量 - centers for tagging
+	 * @param invalidValue 无效值, 含义与TagIdVector.tag相同 - invalid value, same as in TagIdVector.tag
+	 * @param parallelism 同时处理的最大批次数 - max batches processed at the same time
+	 * @param batchSize 批次大小 - batch size
+	 * @param lingerMillis 不满一批时, 第一个向量最多等待的毫秒数, 0表示不等待(每个向量单独处理) - max milliseconds the first vector of a partial batch waits, 0 for no waiting(each vector on its own)
+	 * @param ordered 是否按输入顺序发布结果 - whether results are published in input order
+	 */
+	public TaggingProcessor(TagIdVector[] centers, Double invalidValue, int parallelism, int batchSize, long lingerMillis, boolean ordered)
+	{
+		this(centers, invalidValue, null, parallelism, batchSize, lingerMillis, ordered);
+	}
+
+	/**
+	 * 初始化处理器, 使用外部的工作线程池(关闭时不会关闭它)
+	 * 不要使用与下游订阅者相同的线程池, 否则下游处理慢时可能死锁
+	 * constructor with 7 parameters, uses an external worker pool(not shut down on close).
+	 * do not share it with downstream subscribers, or it may deadlock when downstream is slow
+	 * @param centers 给定的中心向量 - centers for tagging
+	 * @param invalidValue 无效值, 含义与TagIdVector.tag相同 - invalid value, same as in TagIdVector.tag
+	 * @param workers 工作线程池 - the worker pool
+	 * @param parallelism 同时处理的最大批次数 - max batches processed at the same time
+	 * @param batchSize 批次大小 - batch size
+	 * @param lingerMillis 不满一批时, 第一个向量最多等待的毫秒数, 0表示不等待 - max milliseconds the first vector of a partial batch waits, 0 for no waiting
+	 * @param ordered 是否按输入顺序发布结果 - whether results are published in input order
+	 */
+	public TaggingProcessor(TagIdVector[] centers, Double invalidValue, Executor workers, int parallelism, int batchSize, long lingerMillis, boolean ordered)
+	{
+		super(ForkJoinPool.commonPool(), Flow.defaultBufferSize());
+		if (centers.length==0 || parallelism<=0 || batchSize<=0 || lingerMillis<0){
+			throw new IllegalArgumentException("无效的处理器参数: centers="+centers.length+", parallelism="+parallelism+", batchSize="+batchSize+", lingerMillis="+lingerMillis);
+		}
+		this.centers = centers;
+		this.invalidValue = invalidValue;
+		this.ownWorkers = (workers==null) ? Executors.newFixedThreadPool(parallelism, daemonFactory("tagging-worker-")) : null;
+		this.workers = (workers==null) ? ownWorkers : workers;
+		this.lingerTimer = (lingerMillis>0 && batchSize>1) ? Executors.newSingleThreadScheduledExecutor(daemonFactory("tagging-linger-")) : null;
+		this.batchSize = batchSize;
+		this.lingerMillis = lingerMillis;
+		this.ordered = ordered;
+		this.window = parallelism * batchSize;
+	}
+
+	private static ThreadFactory daemonFactory(String prefix)
+	{
+		AtomicInteger counter = new AtomicInteger();
+		return runnable->{
+			Thread thread = new Thread(runnable, prefix+counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription)
+	{
+		if (!upstream.compareAndSet(null, subscription)){
+			subscription.cancel();
+			return;
+		}
+		//订阅之前就已失败时, 在这里取消 - cancels here when failed before subscribing
+		signalUpstream();
+		startIfSubscribed();
+	}
+
+	/**
+	 * 加入下游订阅者; 第一个订阅者到来后才开始向上游请求向量
+	 * add a downstream subscriber; vectors are requested from upstream only after the first subscriber arrives
+	 */
+	@Override
+	public void subscribe(Flow.Subscriber<? super Result> subscriber)
+	{
+		super.subscribe(subscriber);
+		startIfSubscribed();
+	}
+
+	//上游和下游都已就绪时, 请求第一个窗口; onSubscribe和subscribe都会调用, 两者之中后到的一方一定能看到双方都已就绪
+	//request the first window when both upstream and downstream are ready; called by both onSubscribe and subscribe, the later one always sees both ready
+	private void startIfSubscribed()
+	{
+		if (upstream.get()!=null && getNumberOfSubscribers()>0 && started.compareAndSet(false, true)){
+			requestUpstream(window);
+		}
+	}
+
+	private void requestUpstream(long n)
+	{
+		pendingDemand.addAndGet(n);
+		signalUpstream();
+	}
+
+	private void cancelUpstream()
+	{
+		cancelRequested = true;
+		signalUpstream();
+	}
+
+	//把累积的需求或取消发给上游; 已有线程在发送时只留下标记, 由那个线程继续发送, 所以调用者从不等待, 同步的上游重入时也不会递归
+	//send accumulated demand or the cancel to upstream; when another thread is sending, only the mark is left for it to pick up,
+	//so callers never wait, and a re-entrant synchronous upstream does not recurse
+	private void signalUpstream()
+	{
+		if (signalWip.getAndIncrement()!=0){
+			return;
+		}
+		int missed = 1;
+		do {
+			Flow.Subscription subscription = upstream.get();
+			if (subscription!=null && !cancelled){
+				if (cancelRequested){
+					cancelled = true;
+					subscription.cancel();
+				}else{
+					long n = pendingDemand.getAndSet(0);
+					if (n>0 && !upstreamDone){
+						subscription.request(n);
+					}
+				}
+			}
+			missed = signalWip.addAndGet(-missed);
+		} while (missed!=0);
+	}
+
+	//失败或关闭之后, 取消请求之前已在途的向量直接丢弃, 不能向上游抛出异常(Reactive Streams 2.13)
+	//after a failure or close, vectors already in flight before the cancel are dropped; no exception may be thrown to upstream(Reactive Streams 2.13)
+	@Override
+	public void onNext(TagIdVector vector)
+	{
+		if (failed || isClosed()){
+			return;
+		}
+		RuntimeException rejected = null;
+		synchronized (batchLock){
+			if (batch==null){
+				batch = new ArrayList<>(batchSize);
+				if (lingerTimer!=null && !scheduleFlush(batch)){
+					return;
+				}
+			}
+			batch.add(vector);
+			if (batch.size()>=batchSize || lingerTimer==null){
+				List<TagIdVector> full = batch;
+				batch = null;
+				rejected = dispatch(full, nextBatchSeq++);
+			}
+		}
+		if (rejected!=null){
+			fail(rejected);
+		}
+	}
+
+	//为新的批次安排等待超时; 定时器已因失败而关闭时返回false, 在batchLock中调用
+	//schedule the linger timeout of a new batch; returns false when the timer has been shut down by a failure, called inside batchLock
+	private boolean scheduleFlush(List<TagIdVector> current)
+	{
+		try {
+			lingerTimer.schedule(()->flush(current), lingerMillis, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (RejectedExecutionException e) {
+			batch = null;
+			return false;
+		}
+	}
+
+	//等待超时, 把不满的批次交出去 - linger expired, hand over the partial batch
+	private void flush(List<TagIdVector> expected)
+	{
+		RuntimeException rejected;
+		synchronized (batchLock){
+			if (batch!=expected){
+				return;	//已经满批交出了 - already handed over as a full batch
+			}
+			batch = null;
+			rejected = dispatch(expected, nextBatchSeq++);
+		}
+		if (rejected!=null){
+			fail(rejected);
+		}
+	}
+
+	//把批次交给工作线程池, 在batchLock中调用; 线程池拒绝时返回异常, 由调用者在释放batchLock之后调用fail
+	//hand a batch to the worker pool, called inside batchLock; returns the exception when the pool rejects it, and the caller calls fail after releasing batchLock
+	private RuntimeException dispatch(List<TagIdVector> vectors, long seq)
+	{
+		try {
+			workers.execute(()->process(vectors, seq));
+			return null;
+		} catch (RuntimeException e) {
+			return e;
+		}
+	}
+
+	private void process(List<TagIdVector> vectors, long seq)
+	{
+		List<Result> results = new ArrayList<>(vectors.size());
+		try {
+			for (TagIdVector vector : vectors){
+				//tagBy返回与所选中心的点积 - tagBy returns the dot product with the chosen center
+				double score = vector.tagBy(centers, invalidValue);
+				results.add(new Result(vector, vector.tag, score));
+			}
+		} catch (RuntimeException e) {
+			fail(e);
+			return;
+		}
+		emit(results, seq);
+	}
+
+	//发布一个批次的结果; 有序时先暂存, 等前面的批次都发布后再发布
+	//publish results of a batch; in ordered mode they wait until all earlier batches are published
+	private void emit(List<Result> results, long seq)
+	{
+		//发布了多少个结果, 就在释放emitLock之后向上游补充多少个 - request as many vectors as results published, after releasing emitLock
+		long published = 0;
+		synchronized (emitLock){
+			if (failed){
+				return;
+			}
+			if (!ordered){
+				published += publish(results);
+			}else{
+				finished.put(seq, results);
+				List<Result> next;
+				while ((next = finished.remove(nextEmitSeq))!=null){
+					published += publish(next);
+					nextEmitSeq++;
+				}
+			}
+		}
+		if (published>0 && !upstreamDone){
+			requestUpstream(published);
+		}
+		completeIfDone();
+	}
+
+	//在emitLock中调用, 返回发布的结果个数 - called inside emitLock, returns the count of published results
+	private int publish(List<Result> results)
+	{
+		for (Result result : results){
+			//下游缓冲区满时阻塞, 形成背压 - blocks when downstream buffers are full, as backpressure
+			submit(result);
+		}
+		emittedBatches++;
+		return results.size();
+	}
+
+	@Override
+	public void onError(Throwable throwable)
+	{
+		logger.error("上游发生错误, 终止打标签", throwable);
+		synchronized (emitLock){
+			failed = true;
+		}
+		closeExceptionally(throwable);
+		shutdown();
+	}
+
+	@Override
+	public void onComplete()
+	{
+		RuntimeException rejected = null;
+		synchronized (batchLock){
+			upstreamDone = true;
+			if (batch!=null){
+				List<TagIdVector> rest = batch;
+				batch = null;
+				rejected = dispatch(rest, nextBatchSeq++);
+			}
+		}
+		if (rejected!=null){
+			fail(rejected);
+			return;
+		}
+		completeIfDone();
+	}
+
+	//上游已结束, 并且所有批次都已发布时, 关闭发布者 - close the publisher when upstream is done and all batches are published
+	private void completeIfDone()
+	{
+		//两个锁先后获取: 上游结束后不会再有新批次, 所以先读到的批次数就是最终值
+		//the locks are taken one after another: no batch is added after upstream is done, so the count read first is final
+		long dispatchedBatches;
+		synchronized (batchLock){
+			if (!upstreamDone){
+				return;
+			}
+			dispatchedBatches = nextBatchSeq;
+		}
+		boolean done;
+		synchronized (emitLock){
+			done = !failed && emittedBatches==dispatchedBatches;
+		}
+		if (done && !isClosed()){
+			close();
+			shutdown();
+		}
+	}
+
+	private void fail(Throwable throwable)
+	{
+		logger.error("打标签失败", throwable);
+		synchronized (emitLock){
+			if (failed){
+				return;
+			}
+			failed = true;
+		}
+		cancelUpstream();
+		closeExceptionally(throwable);
+		shutdown();
+	}
+
+	private void shutdown()
+	{
+		if (ownWorkers!=null){
+			ownWorkers.shutdown();
+		}
+		if (lingerTimer!=null){
+			lingerTimer.shutdownNow();
+		}
+	}
+}
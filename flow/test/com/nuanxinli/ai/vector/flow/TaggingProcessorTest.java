@@ -0,0 +1,310 @@
+package com.nuanxinli.ai.vector.flow;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.nuanxinli.ai.vector.TagIdVector;
+
+import junit.framework.TestCase;
+
+/**
+ * 流式打标签处理器的测试: 结果与TagIdVector.tag一致(有序时保持输入顺序), 下游订阅之前不向上游请求, 下游慢时对上游的需求有界,
+ * 同步的上游不会死锁, 失败后在途的向量被丢弃而不是向上游抛出异常
+ * tests of the streaming tagging processor: results agree with TagIdVector.tag(in input order when ordered), nothing is requested before a downstream subscriber arrives,
+ * demand on upstream stays bounded with a slow downstream, a synchronous upstream does not deadlock, and vectors in flight after a failure are dropped instead of throwing to upstream
+ * @author 宋辉(Song Hui)
+ *
+ */
+public class TaggingProcessorTest extends TestCase {
+
+	private static TagIdVector[] centers()
+	{
+		TagIdVector[] centers = new TagIdVector[4];
+		for (int i=0; i<centers.length; i++){
+			centers[i] = new TagIdVector((long)i, new String[]{"w"+i, "w"+(i+10)}, new double[]{1, 2});
+			centers[i].tag = "c"+i;
+		}
+		return centers;
+	}
+
+	private static TagIdVector[] vectors(int count)
+	{
+		Random random = new Random(33L);
+		TagIdVector[] vectors = new TagIdVector[count];
+		for (int i=0; i<count; i++){
+			String[] names = new String[6];
+			double[] values = new double[6];
+			for (int j=0; j<names.length; j++){
+				names[j] = "w"+random.nextInt(20);
+				values[j] = random.nextDouble();
+			}
+			vectors[i] = new TagIdVector((long)i, names, values);
+		}
+		return vectors;
+	}
+
+	public void testOrderedResultsAgreeWithTag() throws Exception
+	{
+		TagIdVector[] centers = centers();
+		TagIdVector[] expected = vectors(500);
+		TagIdVector.tag(expected, centers, 0.5);
+		TagIdVector[] vectors = vectors(500);
+
+		List<TaggingProcessor.Result> results = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch done = new CountDownLatch(1);
+		AtomicReference<Throwable> error = new AtomicReference<>();
+		try (SubmissionPublisher<TagIdVector> source = new SubmissionPublisher<>()){
+			TaggingProcessor processor = new TaggingProcessor(centers, 0.5, 3, 16, 5, true);
+			source.subscribe(processor);
+			processor.subscribe(new Flow.Subscriber<TaggingProcessor.Result>() {
+				private Flow.Subscription subscription;
+
+				@Override
+				public void onSubscribe(Flow.Subscription subscription)
+				{
+					this.subscription = subscription;
+					subscription.request(1);
+				}
+
+				@Override
+				public void onNext(TaggingProcessor.Result item)
+				{
+					results.add(item);
+					subscription.request(1);
+				}
+
+				@Override
+				public void onError(Throwable throwable)
+				{
+					error.set(throwable);
+					done.countDown();
+				}
+
+				@Override
+				public void onComplete()
+				{
+					done.countDown();
+				}
+			});
+			for (TagIdVector vector : vectors){
+				source.submit(vector);
+			}
+		}
+		assertTrue(done.await(20, TimeUnit.SECONDS));
+		assertNull(error.get());
+		assertEquals(vectors.length, results.size());
+		for (int i=0; i<vectors.length; i++){
+			TaggingProcessor.Result result = results.get(i);
+			assertEquals(Long.valueOf(i), result.getId());
+			assertEquals(expected[i].tag, result.getTag());
+			TagIdVector chosen = centers[Integer.parseInt(result.getTag().substring(1))];
+			assertEquals(vectors[i].dotProduct(chosen), result.getScore(), 1e-12);
+		}
+	}
+
+	//同步的上游: 在request中直接调用onNext, 并记录请求的总数; 处理器串行调用request, 所以不需要加锁
+	//a synchronous upstream: calls onNext right inside request, and records the total requested; the processor calls request serially, so no lock is needed
+	private static final class SyncSource implements Flow.Publisher<TagIdVector> {
+		private final TagIdVector[] items;
+		private final AtomicLong requested = new AtomicLong();
+		private long demand;
+		private int next;
+		private boolean emitting;
+		private boolean completed;
+		private volatile boolean cancelled;
+
+		SyncSource(TagIdVector[] items)
+		{
+			this.items = items;
+		}
+
+		@Override
+		public void subscribe(Flow.Subscriber<? super TagIdVector> subscriber)
+		{
+			subscriber.onSubscribe(new Flow.Subscription() {
+				@Override
+				public void request(long n)
+				{
+					requested.addAndGet(n);
+					demand += n;
+					if (emitting){
+						return;
+					}
+					emitting = true;
+					while (demand>0 && next<items.length && !cancelled){
+						demand--;
+						subscriber.onNext(items[next++]);
+					}
+					emitting = false;
+					if (next==items.length && !completed && !cancelled){
+						completed = true;
+						subscriber.onComplete();
+					}
+				}
+
+				@Override
+				public void cancel()
+				{
+					cancelled = true;
+				}
+			});
+		}
+	}
+
+	//收集结果的下游, 每个结果之后可以停顿一下, 并记录上游请求数与已收到结果数之差的最大值
+	//a downstream collecting results, optionally pausing after each one, and recording the max difference between upstream requests and received results
+	private static final class Collector implements Flow.Subscriber<TaggingProcessor.Result> {
+		private final List<TaggingProcessor.Result> results = Collections.synchronizedList(new ArrayList<>());
+		private final CountDownLatch done = new CountDownLatch(1);
+		private final AtomicReference<Throwable> error = new AtomicReference<>();
+		private final SyncSource source;
+		private final long pauseMillis;
+		private volatile long maxOutstanding;
+		private Flow.Subscription subscription;
+
+		Collector(SyncSource source, long pauseMillis)
+		{
+			this.source = source;
+			this.pauseMillis = pauseMillis;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription)
+		{
+			this.subscription = subscription;
+			subscription.request(1);
+		}
+
+		@Override
+		public void onNext(TaggingProcessor.Result item)
+		{
+			results.add(item);
+			maxOutstanding = Math.max(maxOutstanding, source.requested.get()-results.size());
+			if (pauseMillis>0){
+				try {
+					Thread.sleep(pauseMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			subscription.request(1);
+		}
+
+		@Override
+		public void onError(Throwable throwable)
+		{
+			error.set(throwable);
+			done.countDown();
+		}
+
+		@Override
+		public void onComplete()
+		{
+			done.countDown();
+		}
+
+		void await() throws InterruptedException
+		{
+			assertTrue(done.await(30, TimeUnit.SECONDS));
+			assertNull(error.get());
+		}
+	}
+
+	public void testUnorderedResultsWithSynchronousUpstream() throws Exception
+	{
+		TagIdVector[] centers = centers();
+		TagIdVector[] expected = vectors(500);
+		TagIdVector.tag(expected, centers, 0.5);
+		TagIdVector[] vectors = vectors(500);
+
+		SyncSource source = new SyncSource(vectors);
+		TaggingProcessor processor = new TaggingProcessor(centers, 0.5, 4, 8, 0, false);
+		source.subscribe(processor);
+		Collector collector = new Collector(source, 0);
+		processor.subscribe(collector);
+		collector.await();
+
+		assertEquals(vectors.length, collector.results.size());
+		boolean[] seen = new boolean[vectors.length];
+		for (TaggingProcessor.Result result : collector.results){
+			int i = result.getId().intValue();
+			assertFalse("重复的结果 - duplicated result "+i, seen[i]);
+			seen[i] = true;
+			assertEquals(expected[i].tag, result.getTag());
+			TagIdVector chosen = centers[Integer.parseInt(result.getTag().substring(1))];
+			assertEquals(vectors[i].dotProduct(chosen), result.getScore(), 1e-12);
+		}
+	}
+
+	public void testNothingRequestedBeforeDownstreamSubscribes() throws Exception
+	{
+		TagIdVector[] vectors = vectors(50);
+		SyncSource source = new SyncSource(vectors);
+		TaggingProcessor processor = new TaggingProcessor(centers(), null, 2, 4, 5, true);
+		source.subscribe(processor);
+		//没有下游时发布的结果会被丢弃, 所以不能请求 - results published with no downstream would be dropped, so nothing may be requested
+		assertEquals(0, source.requested.get());
+
+		Collector collector = new Collector(source, 0);
+		processor.subscribe(collector);
+		collector.await();
+		assertEquals(vectors.length, collector.results.size());
+		for (int i=0; i<vectors.length; i++){
+			assertEquals(Long.valueOf(i), collector.results.get(i).getId());
+		}
+	}
+
+	public void testUpstreamDemandStaysBoundedWithSlowDownstream() throws Exception
+	{
+		int parallelism = 2;
+		int batchSize = 4;
+		TagIdVector[] vectors = vectors(600);
+		SyncSource source = new SyncSource(vectors);
+		TaggingProcessor processor = new TaggingProcessor(centers(), null, parallelism, batchSize, 0, true);
+		source.subscribe(processor);
+		Collector collector = new Collector(source, 1);
+		processor.subscribe(collector);
+		collector.await();
+
+		assertEquals(vectors.length, collector.results.size());
+		//在途的向量不超过窗口, 加上下游缓冲区, 再加上下游正在处理的一个
+		//vectors in flight stay within the window, plus the downstream buffer, plus the one being handled downstream
+		long bound = parallelism*batchSize + Flow.defaultBufferSize() + 1;
+		assertTrue("上游需求超出了下游的处理能力 - upstream demand ran ahead of downstream: "+collector.maxOutstanding, collector.maxOutstanding<=bound);
+		assertTrue(bound<vectors.length);
+	}
+
+	public void testItemsAfterFailureAreDropped()
+	{
+		TaggingProcessor processor = new TaggingProcessor(centers(), null, 2, 8, 50, true);
+		processor.onSubscribe(new Flow.Subscription() {
+			@Override
+			public void request(long n)
+			{
+			}
+
+			@Override
+			public void cancel()
+			{
+			}
+		});
+		TagIdVector[] vectors = vectors(20);
+		processor.onNext(vectors[0]);
+		processor.onError(new IllegalStateException("上游失败 - upstream failure"));
+		//取消之前已在途的向量, 不能抛出异常 - vectors in flight before the cancel must not throw
+		for (int i=1; i<vectors.length; i++){
+			processor.onNext(vectors[i]);
+		}
+		processor.onComplete();
+		assertTrue(processor.isClosed());
+		assertNotNull(processor.getClosedException());
+	}
+}
@@ -0,0 +1,113 @@
+package com.nuanxinli.ai.vector;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * 基于JDK Vector API(jdk.incubator.vector)的SIMD数组运算内核
+ * 只编译进多版本jar的META-INF/versions/17目录, 运行时需要 --add-modules jdk.incubator.vector, 由Kernels自动选择
+ * SIMD array kernels based on the JDK Vector API(jdk.incubator.vector).
+ * only compiled into META-INF/versions/17 of the multi-release jar, needs --add-modules jdk.incubator.vector at runtime, selected by Kernels automatically
+ * @author 宋辉(Song Hui)
+ *
+ */
+final class VectorKernels implements KernelProvider {
+
+	//在类初始化时就访问Vector API, 模块不可用时让Class.forName直接失败
+	//touch the Vector API during class initialization, so Class.forName fails at once when the module is unavailable
+	private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+
+	@Override
+	public String name()
+	{
+		return "vector-api(" + DOUBLES.vectorBitSize() + " bits)";
+	}
+
+	@Override
+	public double sum(double[] values, int length)
+	{
+		DoubleVector acc = DoubleVector.zero(DOUBLES);
+		int i = 0;
+		int bound = DOUBLES.loopBound(length);
+		for (; i<bound; i+=DOUBLES.length()){
+			acc = acc.add(DoubleVector.fromArray(DOUBLES, values, i));
+		}
+		double sum = acc.reduceLanes(VectorOperators.ADD);
+		for (; i<length; i++){
+			sum += values[i];
+		}
+		return sum;
+	}
+
+	@Override
+	public double sumOfSquares(double[] values, int length)
+	{
+		return dot(values, values, length);
+	}
+
+	@Override
+	public double dot(double[] a, double[] b, int length)
+	{
+		DoubleVector acc = DoubleVector.zero(DOUBLES);
+		int i = 0;
+		int bound = DOUBLES.loopBound(length);
+		for (; i<bound; i+=DOUBLES.length()){
+			DoubleVector va = DoubleVector.fromArray(DOUBLES, a, i);
+			DoubleVector vb = DoubleVector.fromArray(DOUBLES, b, i);
+			acc = va.fma(vb, acc);
+		}
+		double sum = acc.reduceLanes(VectorOperators.ADD);
+		for (; i<length; i++){
+			sum += a[i]*b[i];
+		}
+		return sum;
+	}
+
+	@Override
+	public float dot(float[] a, float[] b, int length)
+	{
+		FloatVector acc = FloatVector.zero(FLOATS);
+		int i = 0;
+		int bound = FLOATS.loopBound(length);
+		for (; i<bound; i+=FLOATS.length()){
+			FloatVector va = FloatVector.fromArray(FLOATS, a, i);
+			FloatVector vb = FloatVector.fromArray(FLOATS, b, i);
+			acc = va.fma(vb, acc);
+		}
+		float sum = acc.reduceLanes(VectorOperators.ADD);
+		for (; i<length; i++){
+			sum += a[i]*b[i];
+		}
+		return sum;
+	}
+
+	@Override
+	public double gatherDot(int[] indexes, double[] values, int length, double[] dense)
+	{
+		DoubleVector acc = DoubleVector.zero(DOUBLES);
+		int i = 0;
+		int bound = DOUBLES.loopBound(length);
+		for (; i<bound; i+=DOUBLES.length()){
+			DoubleVector gathered = DoubleVector.fromArray(DOUBLES, dense, 0, indexes, i);
+			DoubleVector vv = DoubleVector.fromArray(DOUBLES, values, i);
+			acc = vv.fma(gathered, acc);
+		}
+		double sum = acc.reduceLanes(VectorOperators.ADD);
+		for (; i<length; i++){
+			sum += values[i]*dense[indexes[i]];
+		}
+		return sum;
+	}
+
+	@Override
+	public void dotBatch(float[] query, float[][] rows, int count, float[] scores)
+	{
+		int length = query.length;
+		for (int r=0; r<count; r++){
+			scores[r] = dot(query, rows[r], length);
+		}
+	}
+}
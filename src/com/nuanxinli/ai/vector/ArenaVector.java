@@ -0,0 +1,380 @@
+package com.nuanxinli.ai.vector;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * 堆外向量的句柄, 由VectorArena分配
+ * 维度数据保存在存储区的堆外内存中, 句柄本身只记录位置; 它是一个只读的TagIdVector, 可以直接用于各种相似性计算、aggregate和TagIdVector.tag,
+ * 计算时直接读取堆外数据, 不会复制回堆上(id和tag属性仍然保存在堆上, tag可以修改)
+ * 存储区clear()或close()之后, 句柄失效, 再访问维度数据会抛出IllegalStateException
+ * a handle of an off-heap vector, allocated by VectorArena.
+ * division data stays in off-heap memory of the arena, the handle only records its position. It is a read-only TagIdVector,
+ * and can be used directly in similarity calculations, aggregate and TagIdVector.tag, reading off-heap data without copying it back onto the heap
+ * (id and tag still live on heap, and tag can be modified).
+ * after clear() or close() of the arena, the handle is invalid and accessing its divisions throws IllegalStateException.
+ * @author 宋辉(Song Hui)
+ *
+ */
+public final class ArenaVector extends TagIdVector {
+
+	private final VectorArena arena;
+	private final int generation;
+	private final IntBuffer indexes;
+	private final DoubleBuffer values;
+	private final int offset;
+	private final int length;
+	//分配时计算好的维度值之和与长度的平方 - sum and square of length, calculated on allocation
+	private final double sum;
+	private final double squareOfLength;
+
+	ArenaVector(VectorArena arena, int generation, VectorArena.Slab slab, int offset, int length, Long id, double sum, double squareOfLength)
+	{
+		super(id);
+		this.arena = arena;
+		this.generation = generation;
+		this.indexes = slab.indexes;
+		this.values = slab.values;
+		this.offset = offset;
+		this.length = length;
+		this.sum = sum;
+		this.squareOfLength = squareOfLength;
+	}
+
+	/**
+	 * 所属的存储区
+	 * the arena owning this vector
+	 */
+	public VectorArena getArena()
+	{
+		return arena;
+	}
+
+	/**
+	 * 句柄是否仍然有效
+	 * whether this handle is still valid
+	 */
+	public boolean isValid()
+	{
+		try {
+			arena.checkValid(generation);
+			return true;
+		} catch (IllegalStateException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public Double getDivValue(String divName)
+	{
+		arena.checkValid(generation);
+		int index = arena.lookup(divName);
+		if (index<0){
+			return null;
+		}
+		int position = find(index);
+		return position<0 ? null : values.get(offset+position);
+	}
+
+	@Override
+	double valueOrZero(String divName)
+	{
+		arena.checkValid(generation);
+		int index = arena.lookup(divName);
+		int position = index<0 ? -1 : find(index);
+		return position<0 ? 0 : values.get(offset+position);
+	}
+
+	//在本向量的维度编号中二分查找, 返回相对位置, 找不到返回-1
+	//binary search in division indexes of this vector, returns the relative position, or -1 if missing
+	private int find(int index)
+	{
+		int low = 0;
+		int high = length - 1;
+		while (low<=high){
+			int middle = (low + high) >>> 1;
+			int current = indexes.get(offset+middle);
+			if (current<index){
+				low = middle + 1;
+			}else if (current>index){
+				high = middle - 1;
+			}else{
+				return middle;
+			}
+		}
+		return -1;
+	}
+
+	//把维度编号和维度值复制到数组的前divCount()个元素中, 供数组运算内核使用
+	//copy division indexes and values into the first divCount() elements of arrays, for array kernels
+	void copyTo(int[] divIndexes, double[] divValues)
+	{
+		arena.checkValid(generation);
+		for (int i=0; i<length; i++){
+			divIndexes[i] = indexes.get(offset+i);
+			divValues[i] = values.get(offset+i);
+		}
+	}
+
+	@Override
+	public int divCount()
+	{
+		return length;
+	}
+
+	//句柄只读, 维度不会变; 但存储区clear()或close()后内容随之失效, 所以用存储区的代数作为修改计数器,
+	//让SimilarityCache等外部缓存在存储区清空后不再使用旧结果
+	//a handle is read-only so its divisions never change, but they become invalid on clear() or close() of the arena;
+	//the arena generation serves as the modification counter, so external caches like SimilarityCache drop old results after a clear
+	@Override
+	int modCount()
+	{
+		return arena.generation();
+	}
+
+	@Override
+	boolean drivesDotProduct()
+	{
+		return true;
+	}
+
+	@Override
+	public double dotProduct(SparseVector vector)
+	{
+		if (vector==null){
+			return 0;
+		}
+		arena.checkValid(generation);
+		if (vector instanceof ArenaVector && ((ArenaVector)vector).arena==arena){
+			return mergeDotProduct((ArenaVector)vector);
+		}
+		//遍历本向量的堆外数据, 到另一个向量中查值 - iterate off-heap data of this vector, and look up the other one
+		double product = 0;
+		for (int i=0; i<length; i++){
+			product += values.get(offset+i) * vector.valueOrZero(arena.nameOf(indexes.get(offset+i)));
+		}
+		return product;
+	}
+
+	//同一存储区的两个向量, 按维度编号归并求点积 - dot product of two vectors in the same arena, by merging division indexes
+	private double mergeDotProduct(ArenaVector vector)
+	{
+		vector.arena.checkValid(vector.generation);
+		return sparseDot(indexes, values, offset, length, vector.indexes, vector.values, vector.offset, vector.length);
+	}
+
+	/**
+	 * 两个按下标升序排列的稀疏向量的点积, 只有下标相同的维度参与计算
+	 * 两者长度相差悬殊时, 在长的一方中用倍增查找跳过不相交的部分
+	 * dot product of two sparse vectors with ascending indexes, only matching indexes contribute;
+	 * when their lengths differ a lot, galloping search skips the non-overlapping parts of the longer one
+	 */
+	static double sparseDot(IntBuffer indexA, DoubleBuffer valueA, int offsetA, int lengthA,
+			IntBuffer indexB, DoubleBuffer valueB, int offsetB, int lengthB)
+	{
+		if (lengthA>lengthB){
+			return sparseDot(indexB, valueB, offsetB, lengthB, indexA, valueA, offsetA, lengthA);
+		}
+		double product = 0;
+		if (lengthA*8 < lengthB){
+			int from = 0;
+			for (int i=0; i<lengthA && from<lengthB; i++){
+				int position = gallop(indexB, offsetB, from, lengthB, indexA.get(offsetA+i));
+				if (position>=0){
+					product += valueA.get(offsetA+i)*valueB.get(offsetB+position);
+					from = position + 1;
+				}else{
+					from = -position - 1;
+				}
+			}
+			return product;
+		}
+		int i = 0, j = 0;
+		while (i<lengthA && j<lengthB){
+			int a = indexA.get(offsetA+i);
+			int b = indexB.get(offsetB+j);
+			if (a==b){
+				product += valueA.get(offsetA+i)*valueB.get(offsetB+j);
+				i++;
+				j++;
+			}else if (a<b){
+				i++;
+			}else{
+				j++;
+			}
+		}
+		return product;
+	}
+
+	//在indexes[offset+from, offset+to)中倍增查找key, 找到返回相对位置, 否则返回-(相对插入位置)-1 (与Arrays.binarySearch约定相同)
+	//galloping search for key in indexes[offset+from, offset+to), returns the relative position, or -(relative insertion point)-1 as Arrays.binarySearch
+	private static int gallop(IntBuffer indexes, int offset, int from, int to, int key)
+	{
+		int bound = 1;
+		while (from+bound<to && indexes.get(offset+from+bound)<key){
+			bound <<= 1;
+		}
+		int low = from + (bound>>1);
+		int high = Math.min(from+bound+1, to) - 1;
+		while (low<=high){
+			int middle = (low + high) >>> 1;
+			int current = indexes.get(offset+middle);
+			if (current<key){
+				low = middle + 1;
+			}else if (current>key){
+				high = middle - 1;
+			}else{
+				return middle;
+			}
+		}
+		return -(low + 1);
+	}
+
+	@Override
+	public double squareOfDistance(SparseVector vector)
+	{
+		if (vector==null){
+			return squareOfLength(false);
+		}
+		arena.checkValid(generation);
+		if (vector instanceof ArenaVector && ((ArenaVector)vector).arena==arena){
+			return mergeSquareOfDistance((ArenaVector)vector);
+		}
+		//先遍历本向量的堆外数据, 再加上另一个向量中本向量没有的维度 - iterate off-heap data of this vector, then add divisions of the other one missing here
+		double square = 0;
+		for (int i=0; i<length; i++){
+			double difference = values.get(offset+i) - vector.valueOrZero(arena.nameOf(indexes.get(offset+i)));
+			square += difference*difference;
+		}
+		for (Map.Entry<String, Double> entry : vector.getEntries()){
+			int index = arena.lookup(entry.getKey());
+			if (index<0 || find(index)<0){
+				square += entry.getValue()*entry.getValue();
+			}
+		}
+		return square;
+	}
+
+	//同一存储区的两个向量, 按维度编号归并求各维度差的平方和 - sum of squared differences of two vectors in the same arena, by merging division indexes
+	private double mergeSquareOfDistance(ArenaVector vector)
+	{
+		vector.arena.checkValid(vector.generation);
+		double square = 0;
+		int i = 0, j = 0;
+		while (i<length || j<vector.length){
+			int a = i<length ? indexes.get(offset+i) : Integer.MAX_VALUE;
+			int b = j<vector.length ? vector.indexes.get(vector.offset+j) : Integer.MAX_VALUE;
+			double difference;
+			if (a==b){
+				difference = values.get(offset+i++) - vector.values.get(vector.offset+j++);
+			}else if (a<b){
+				difference = values.get(offset+i++);
+			}else{
+				difference = vector.values.get(vector.offset+j++);
+			}
+			square += difference*difference;
+		}
+		return square;
+	}
+
+	@Override
+	public double squareOfLength(boolean updateCache)
+	{
+		arena.checkValid(generation);
+		return squareOfLength;
+	}
+
+	@Override
+	public double sum(boolean updateCache)
+	{
+		arena.checkValid(generation);
+		return sum;
+	}
+
+	@Override
+	public Set<Entry<String, Double>> getEntries()
+	{
+		arena.checkValid(generation);
+		return new AbstractSet<Entry<String, Double>>() {
+			@Override
+			public Iterator<Entry<String, Double>> iterator()
+			{
+				return new Iterator<Entry<String, Double>>() {
+					private int i = 0;
+
+					@Override
+					public boolean hasNext()
+					{
+						return i<length;
+					}
+
+					@Override
+					public Entry<String, Double> next()
+					{
+						if (i>=length){
+							throw new NoSuchElementException();
+						}
+						arena.checkValid(generation);
+						int position = offset + i++;
+						return new AbstractMap.SimpleImmutableEntry<>(arena.nameOf(indexes.get(position)), values.get(position));
+					}
+				};
+			}
+
+			@Override
+			public int size()
+			{
+				return length;
+			}
+		};
+	}
+
+	@Override
+	Map<String, Double> asMap()
+	{
+		return new AbstractMap<String, Double>() {
+			@Override
+			public Set<Entry<String, Double>> entrySet()
+			{
+				return getEntries();
+			}
+
+			@Override
+			public Double get(Object key)
+			{
+				return (key instanceof String) ? getDivValue((String)key) : null;
+			}
+
+			@Override
+			public boolean containsKey(Object key)
+			{
+				return get(key)!=null;
+			}
+		};
+	}
+
+	@Override
+	public void setDiv(String divName, double divValue)
+	{
+		throw new UnsupportedOperationException("堆外向量是只读的");
+	}
+
+	@Override
+	public void addDiv(String divName, double addValue)
+	{
+		throw new UnsupportedOperationException("堆外向量是只读的");
+	}
+
+	@Override
+	public Double removeDiv(String divName)
+	{
+		throw new UnsupportedOperationException("堆外向量是只读的");
+	}
+}
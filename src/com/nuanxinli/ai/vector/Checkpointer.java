@@ -0,0 +1,580 @@
+package com.nuanxinli.ai.vector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * 检查点
+ * 在长时间的聚类(aggregate/getCentroid迭代)或打标签(TagIdVector.tag)过程中, 定期把中心向量、每个向量的分配结果和最后处理的向量位置保存到本地磁盘,
+ * JVM重启后可以从检查点继续, 不必从头计算
+ * 写入方式为先写临时文件并同步到磁盘, 再原子地重命名为检查点文件, 所以检查点文件要么是旧的, 要么是新的, 不会是写了一半的
+ * 同一个状态再次保存时, 不再重写整个文件, 只把上次保存之后新处理的分配结果追加到日志文件(检查点文件名加.log)中并同步到磁盘,
+ * 所以每次保存的开销与新处理的向量个数成正比, 而不是与向量总数成正比; 任务完成、换了状态(新的一轮迭代或重新开始)或恢复之后的第一次保存才写完整的快照, 并删除日志
+ * 日志中每条记录各有校验和, 恢复时从快照开始依次应用日志中的记录, 遇到写了一半或损坏的记录即停止, 之前的记录仍然有效
+ * 检查点中记录了任务指纹(向量个数, 向量id和内容的哈希, 中心的哈希, 迭代次数), 只有指纹相同、尚未完成的检查点才会被续用,
+ * 否则(包括文件损坏)从头开始, 不会把另一个任务或上一轮迭代的结果当作本次的结果
+ * checkpoints for long running clustering(aggregate/getCentroid iterations) or tagging(TagIdVector.tag).
+ * centers, assignment of each vector and the position of last processed vector are saved to local disk periodically,
+ * so that the work can be resumed after a JVM restart instead of recomputing from the beginning.
+ * a checkpoint is written to a temp file, synced to disk, and atomically renamed to the checkpoint file,
+ * so the checkpoint file is either the old one or the new one, never a half written one.
+ * when the same state is saved again, the file is not rewritten: only assignments made since the last save are appended to a log file
+ * (the checkpoint file name plus .log) and synced, so each save costs in proportion to the newly processed vectors instead of all vectors.
+ * a full snapshot is written, and the log deleted, only when the job completes, when another state is saved(a new iteration or a fresh start),
+ * or on the first save after a restore.
+ * each log record has its own checksum; restoring applies log records to the snapshot in order and stops at a half written or corrupt one,
+ * records before it stay valid.
+ * a checkpoint records a job fingerprint(vector count, hash of vector ids and contents, hash of centers, iteration),
+ * and is resumed only when the fingerprint matches and the job is not complete; otherwise(a corrupt file included) the job starts over,
+ * so results of another job or of an earlier iteration are never taken as results of this one.
+ *
+ * 文件格式(大端) - file format(big endian):
+ * magic(int) version(int) snapshotId(long) iteration(int) lastProcessed(int) complete(boolean)
+ * 任务指纹 - job fingerprint: vectorCount(int) vectorsHash(long) centersHash(long)
+ * 维度字典 - division dictionary: count(int) name(UTF)*
+ * 中心向量 - centers: count(int) {kind(byte) [id(long)/tag(UTF)] divCount(int) {nameIndex(int) value(double)}*}*
+ * 分配结果 - assignments: count(int) index(int)*
+ * 校验和 - checksum: crc32(long)
+ * 日志文件 - log file: magic(int) snapshotId(long) {from(int) count(int) index(int)* crc32(long)}*
+ * 日志中的snapshotId必须与快照相同, 否则是旧快照留下的日志, 被忽略 - snapshotId of the log must match the snapshot, otherwise it was left by an older snapshot and is ignored
+ * @author 宋辉(Song Hui)
+ *
+ */
+public class Checkpointer {
+
+	/**
+	 * 检查点的内容
+	 * content of a checkpoint
+	 */
+	public static class State {
+		//中心向量, 可以为null(例如打标签时中心不变, 不需要保存) - centers, may be null(e.g. centers are fixed in tagging)
+		public SparseVector[] centers;
+		//每个向量所属中心的索引, -1表示尚未处理 - index of center for each vector, -1 if not processed yet
+		public int[] assignments;
+		//最后处理完的向量位置, -1表示一个都没处理 - position of the last processed vector, -1 if none
+		public int lastProcessed = -1;
+		//迭代次数, 供多轮迭代的聚类使用 - iteration count, for clustering with multiple rounds
+		public int iteration;
+		//任务是否已经完成, 已完成的检查点不会被续用 - whether the job is complete, a complete checkpoint is never resumed
+		public boolean complete;
+		//任务指纹, 由resume填写 - job fingerprint, filled by resume
+		int vectorCount = -1;
+		long vectorsHash;
+		long centersHash;
+
+		public State() {
+		}
+
+		public State(SparseVector[] centers, int[] assignments, int lastProcessed, int iteration)
+		{
+			this.centers = centers;
+			this.assignments = assignments;
+			this.lastProcessed = lastProcessed;
+			this.iteration = iteration;
+		}
+	}
+
+	private static final int MAGIC = 0x53564350;	//"SVCP"
+	private static final int VERSION = 3;
+	private static final int LOG_MAGIC = 0x5356434C;	//"SVCL"
+	//日志文件头的长度 - length of the log file header
+	private static final int LOG_HEADER = 12;
+
+	//中心向量的类型 - kinds of centers
+	private static final byte KIND_NULL = 0;
+	private static final byte KIND_SPARSE = 1;
+	private static final byte KIND_TAG_ID = 2;
+
+	//检查点文件 - the checkpoint file
+	private final File file;
+	//追加分配结果的日志文件 - log file for appended assignments
+	private final File logFile;
+	//每处理多少个向量保存一次, 0表示不按个数 - save every this many vectors, 0 to disable
+	private final int everyVectors;
+	//每隔多少毫秒保存一次, 0表示不按时间 - save every this many milliseconds, 0 to disable
+	private final long everyMillis;
+
+	private int lastSavedProcessed = -1;
+	private long lastSavedTime = System.currentTimeMillis();
+	//磁盘上的快照所属的状态及其迭代次数和中心, 同一个状态再次保存时只追加日志; 为null时下次保存写完整的快照
+	//the state of the snapshot on disk with its iteration and centers, saving the same state again only appends to the log; a full snapshot is written next when null
+	private State snapshotState;
+	private int snapshotIteration;
+	private SparseVector[] snapshotCenters;
+	private long snapshotId;
+
+	private static Logger logger = Logger.getLogger(Checkpointer.class);
+
+	/**
+	 * 初始化检查点
+	 * constructor with 3 parameters
+	 * @param file 检查点文件 - the checkpoint file
+	 * @param everyVectors 每处理多少个向量保存一次, 0表示不按个数 - save every this many vectors, 0 to disable
+	 * @param everyMillis 每隔多少毫秒保存一次, 0表示不按时间 - save every this many milliseconds, 0 to disable
+	 */
+	public Checkpointer(File file, int everyVectors, long everyMillis)
+	{
+		this.file = file;
+		this.logFile = new File(file.getPath()+".log");
+		this.everyVectors = everyVectors;
+		this.everyMillis = everyMillis;
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * 处理到指定位置时, 是否应该保存检查点
+	 * whether a checkpoint should be saved when processed up to the position
+	 * @param lastProcessed 最后处理完的向量位置 - position of the last processed vector
+	 */
+	public boolean due(int lastProcessed)
+	{
+		if (everyVectors>0 && lastProcessed-lastSavedProcessed>=everyVectors){
+			return true;
+		}
+		return everyMillis>0 && System.currentTimeMillis()-lastSavedTime>=everyMillis;
+	}
+
+	/**
+	 * 保存检查点
+	 * 与上次保存的是同一个状态对象, 并且迭代次数和中心数组不变、尚未完成时, 只把上次保存之后的分配结果追加到日志中;
+	 * 否则写完整的快照(先写临时文件, 再原子重命名)并删除日志. 注意: 已保存过的分配结果或中心向量的内容被原地修改后, 应该用新的状态对象保存
+	 * save a checkpoint.
+	 * when it is the same state object as the last save, with the same iteration and centers array, and not complete,
+	 * only assignments made since the last save are appended to the log; otherwise a full snapshot is written(a temp file, then renamed atomically)
+	 * and the log is deleted. note: after assignments already saved or contents of centers are modified in place, save with a new state object
+	 * @param state 检查点内容 - content of the checkpoint
+	 */
+	public void save(State state)
+	{
+		if (state==snapshotState && !state.complete && state.iteration==snapshotIteration && state.centers==snapshotCenters
+				&& state.lastProcessed>=lastSavedProcessed){
+			append(state);
+		}else{
+			writeSnapshot(state);
+		}
+		lastSavedProcessed = state.lastProcessed;
+		lastSavedTime = System.currentTimeMillis();
+		logger.debug("保存检查点: "+file+", 已处理到第"+state.lastProcessed+"个向量");
+	}
+
+	//把上次保存之后的分配结果作为一条记录追加到日志中, 并同步到磁盘 - append assignments since the last save to the log as one record, and sync it to disk
+	private void append(State state)
+	{
+		int from = lastSavedProcessed + 1;
+		int count = state.lastProcessed - lastSavedProcessed;
+		if (count==0){
+			return;
+		}
+		try (FileOutputStream fileOut = new FileOutputStream(logFile, true)){
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1<<16));
+			if (logFile.length()==0){
+				out.writeInt(LOG_MAGIC);
+				out.writeLong(snapshotId);
+			}
+			CRC32 crc = new CRC32();
+			DataOutputStream record = new DataOutputStream(new CheckedOutputStream(out, crc));
+			record.writeInt(from);
+			record.writeInt(count);
+			for (int i=from; i<=state.lastProcessed; i++){
+				record.writeInt(state.assignments[i]);
+			}
+			out.writeLong(crc.getValue());
+			out.flush();
+			fileOut.getFD().sync();
+		} catch (IOException e) {
+			throw new UncheckedIOException("保存检查点失败: "+logFile, e);
+		}
+	}
+
+	//写完整的快照, 然后删除旧快照的日志 - write a full snapshot, then delete the log of the old snapshot
+	private void writeSnapshot(State state)
+	{
+		long id = ThreadLocalRandom.current().nextLong();
+		File dir = file.getAbsoluteFile().getParentFile();
+		File temp = new File(dir, file.getName()+".tmp");
+		try {
+			try (FileOutputStream fileOut = new FileOutputStream(temp)){
+				CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOut, 1<<16), new CRC32());
+				DataOutputStream out = new DataOutputStream(checked);
+				write(out, state, id);
+				out.writeLong(checked.getChecksum().getValue());
+				out.flush();
+				fileOut.getFD().sync();
+			}
+			try {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("保存检查点失败: "+file, e);
+		}
+		//重命名之后再删除日志; 在这之间中断时, 旧日志的snapshotId与新快照不同, 会被忽略
+		//the log is deleted after the rename; if interrupted in between, the old log has another snapshotId than the new snapshot and is ignored
+		deleteLog();
+		snapshotState = state.complete ? null : state;
+		snapshotIteration = state.iteration;
+		snapshotCenters = state.centers;
+		snapshotId = id;
+	}
+
+	private void deleteLog()
+	{
+		if (logFile.exists() && !logFile.delete()){
+			logger.warn("无法删除检查点日志: "+logFile);
+		}
+	}
+
+	/**
+	 * 读取检查点
+	 * restore the checkpoint
+	 * @return 检查点内容, 文件不存在时返回null - content of the checkpoint, null if the file does not exist
+	 */
+	public State restore()
+	{
+		if (!file.exists()){
+			return null;
+		}
+		try (FileInputStream fileIn = new FileInputStream(file)){
+			CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(fileIn, 1<<16), new CRC32());
+			DataInputStream in = new DataInputStream(checked);
+			long[] id = new long[1];
+			State state = read(in, file.length(), id);
+			long expected = checked.getChecksum().getValue();
+			if (in.readLong()!=expected){
+				throw new IOException("检查点校验和不匹配");
+			}
+			replayLog(state, id[0]);
+			//恢复之后的第一次保存写完整的快照, 把日志合并进去 - the first save after a restore writes a full snapshot, merging the log into it
+			snapshotState = null;
+			lastSavedProcessed = state.lastProcessed;
+			logger.info("从检查点恢复: "+file+", 已处理到第"+state.lastProcessed+"个向量, 第"+state.iteration+"轮迭代");
+			return state;
+		} catch (IOException e) {
+			throw new UncheckedIOException("读取检查点失败: "+file, e);
+		}
+	}
+
+	//把日志中属于该快照的记录依次应用到状态上, 遇到不连续、写了一半或损坏的记录即停止
+	//apply records of the log belonging to the snapshot in order, stopping at a discontinuous, half written or corrupt record
+	private void replayLog(State state, long id) throws IOException
+	{
+		if (!logFile.exists() || state.assignments==null){
+			return;
+		}
+		int applied = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile), 1<<16))){
+			if (logFile.length()<LOG_HEADER || in.readInt()!=LOG_MAGIC || in.readLong()!=id){
+				logger.warn("检查点日志不属于当前快照, 忽略: "+logFile);
+				return;
+			}
+			while (true){
+				CRC32 crc = new CRC32();
+				DataInputStream record = new DataInputStream(new CheckedInputStream(in, crc));
+				int from;
+				try {
+					from = record.readInt();
+				} catch (EOFException e) {
+					break;	//日志结束 - end of the log
+				}
+				int count = record.readInt();
+				if (from!=state.lastProcessed+1 || count<=0 || count>state.assignments.length-from){
+					logger.warn("检查点日志记录不连续, 忽略其后的内容: "+logFile);
+					break;
+				}
+				int[] assignments = new int[count];
+				for (int i=0; i<count; i++){
+					assignments[i] = record.readInt();
+				}
+				if (in.readLong()!=crc.getValue()){
+					logger.warn("检查点日志记录的校验和不匹配, 忽略其后的内容: "+logFile);
+					break;
+				}
+				System.arraycopy(assignments, 0, state.assignments, from, count);
+				state.lastProcessed = from + count - 1;
+				applied++;
+			}
+		} catch (EOFException e) {
+			//最后一条记录写了一半, 之前的记录仍然有效 - the last record is half written, records before it are still valid
+			logger.warn("检查点日志的最后一条记录不完整, 已忽略: "+logFile);
+		}
+		logger.debug("从检查点日志应用了"+applied+"条记录: "+logFile);
+	}
+
+	//为一个任务恢复检查点: 只有指纹相同、尚未完成、分配结果都是有效中心索引的检查点才会被续用, 否则返回一个从头开始的状态
+	//返回的状态中已填好本任务的指纹, 之后保存的检查点都带有它
+	//restore the checkpoint for a job: it is resumed only when the fingerprint matches, the job is not complete and all assignments are
+	//valid center indexes; otherwise returns a fresh state. the returned state carries the fingerprint of this job for later saves
+	State resume(SparseVector[] vectors, SparseVector[] centers, int iteration)
+	{
+		int size = vectors.length;
+		long vectorsHash = fingerprint(vectors);
+		long centersHash = fingerprint(centers);
+		State state = null;
+		try {
+			state = restore();
+		} catch (UncheckedIOException e) {
+			logger.warn("检查点无法读取, 从头开始: "+e.getMessage());
+		}
+		if (state!=null){
+			String mismatch = null;
+			if (state.complete){
+				mismatch = "该任务已经完成";
+			}else if (state.vectorCount!=size || state.vectorsHash!=vectorsHash){
+				mismatch = "向量不同";
+			}else if (state.centersHash!=centersHash){
+				mismatch = "中心不同";
+			}else if (state.iteration!=iteration){
+				mismatch = "迭代次数不同: "+state.iteration;
+			}else if (state.assignments==null || state.assignments.length!=size || state.lastProcessed>=size){
+				mismatch = "分配结果不完整";
+			}else{
+				for (int i=0; i<=state.lastProcessed; i++){
+					if (state.assignments[i]<0 || state.assignments[i]>=centers.length){
+						mismatch = "第"+i+"个向量的分配结果超出中心范围: "+state.assignments[i];
+						break;
+					}
+				}
+			}
+			if (mismatch==null){
+				return state;
+			}
+			logger.warn("检查点与当前任务不符("+mismatch+"), 从头开始: "+file);
+		}
+		lastSavedProcessed = -1;
+		int[] assignments = new int[size];
+		Arrays.fill(assignments, -1);
+		State fresh = new State(null, assignments, -1, iteration);
+		fresh.vectorCount = size;
+		fresh.vectorsHash = vectorsHash;
+		fresh.centersHash = centersHash;
+		return fresh;
+	}
+
+	//按位置计算一组向量的指纹, 包括TagIdVector的id和每个向量的内容
+	//fingerprint of vectors by position, including ids of TagIdVectors and the content of each vector
+	static long fingerprint(SparseVector[] vectors)
+	{
+		long hash = vectors.length;
+		for (SparseVector vector : vectors){
+			long item = 0;
+			if (vector!=null){
+				item = vector.asMap().hashCode();
+				if (vector instanceof TagIdVector && ((TagIdVector)vector).id!=null){
+					item = item*31 + ((TagIdVector)vector).id;
+				}
+				item++;
+			}
+			hash = hash*0x9E3779B97F4A7C15L + item;
+		}
+		return hash ^ (hash >>> 29);
+	}
+
+	/**
+	 * 删除检查点文件(通常在任务完成后调用)
+	 * delete the checkpoint file(usually after the job is done)
+	 */
+	public void delete()
+	{
+		if (file.exists() && !file.delete()){
+			logger.warn("无法删除检查点文件: "+file);
+		}
+		deleteLog();
+		snapshotState = null;
+		lastSavedProcessed = -1;
+	}
+
+	private static void write(DataOutputStream out, State state, long snapshotId) throws IOException
+	{
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(snapshotId);
+		out.writeInt(state.iteration);
+		out.writeInt(state.lastProcessed);
+		out.writeBoolean(state.complete);
+		out.writeInt(state.vectorCount);
+		out.writeLong(state.vectorsHash);
+		out.writeLong(state.centersHash);
+
+		SparseVector[] centers = state.centers==null ? new SparseVector[0] : state.centers;
+		//先收集所有维度名称, 每个名称只写一次 - collect all division names first, each name is written once
+		Map<String, Integer> dictionary = new HashMap<>();
+		List<String> names = new ArrayList<>();
+		for (SparseVector center : centers){
+			if (center==null){
+				continue;
+			}
+			for (Map.Entry<String, Double> entry : center.getEntries()){
+				if (!dictionary.containsKey(entry.getKey())){
+					dictionary.put(entry.getKey(), names.size());
+					names.add(entry.getKey());
+				}
+			}
+		}
+		out.writeInt(names.size());
+		for (String name : names){
+			out.writeUTF(name);
+		}
+
+		out.writeInt(state.centers==null ? -1 : centers.length);
+		for (SparseVector center : centers){
+			if (center==null){
+				out.writeByte(KIND_NULL);
+				continue;
+			}
+			if (center instanceof TagIdVector){
+				TagIdVector tagIdVector = (TagIdVector)center;
+				out.writeByte(KIND_TAG_ID);
+				writeNullable(out, tagIdVector.id);
+				writeNullable(out, tagIdVector.tag);
+			}else{
+				out.writeByte(KIND_SPARSE);
+			}
+			out.writeInt(center.divCount());
+			for (Map.Entry<String, Double> entry : center.getEntries()){
+				out.writeInt(dictionary.get(entry.getKey()));
+				out.writeDouble(entry.getValue());
+			}
+		}
+
+		int[] assignments = state.assignments;
+		out.writeInt(assignments==null ? -1 : assignments.length);
+		if (assignments!=null){
+			for (int assignment : assignments){
+				out.writeInt(assignment);
+			}
+		}
+	}
+
+	//limit为文件长度, 任何个数都不可能超过它, 用于在文件损坏时避免分配巨大的数组
+	//limit is the file length, no count can exceed it; guards against huge allocations on a corrupt file
+	//快照的snapshotId写入snapshotId[0] - snapshotId of the snapshot is written into snapshotId[0]
+	private static State read(DataInputStream in, long limit, long[] snapshotId) throws IOException
+	{
+		if (in.readInt()!=MAGIC){
+			throw new IOException("不是检查点文件");
+		}
+		int version = in.readInt();
+		if (version!=VERSION){
+			throw new IOException("不支持的检查点版本: "+version);
+		}
+		snapshotId[0] = in.readLong();
+		State state = new State();
+		state.iteration = in.readInt();
+		state.lastProcessed = in.readInt();
+		state.complete = in.readBoolean();
+		state.vectorCount = in.readInt();
+		state.vectorsHash = in.readLong();
+		state.centersHash = in.readLong();
+
+		String[] names = new String[readCount(in, limit)];
+		for (int i=0; i<names.length; i++){
+			names[i] = in.readUTF();
+		}
+
+		int centerCount = readNullableCount(in, limit);
+		if (centerCount>=0){
+			state.centers = new SparseVector[centerCount];
+			for (int i=0; i<centerCount; i++){
+				byte kind = in.readByte();
+				if (kind==KIND_NULL){
+					continue;
+				}
+				Long id = null;
+				String tag = null;
+				if (kind==KIND_TAG_ID){
+					id = in.readBoolean() ? in.readLong() : null;
+					tag = in.readBoolean() ? in.readUTF() : null;
+				}
+				int divCount = readCount(in, limit);
+				String[] divNames = new String[divCount];
+				double[] divValues = new double[divCount];
+				for (int j=0; j<divCount; j++){
+					int nameIndex = in.readInt();
+					if (nameIndex<0 || nameIndex>=names.length){
+						throw new IOException("检查点已损坏: 维度编号超出范围 "+nameIndex);
+					}
+					divNames[j] = names[nameIndex];
+					divValues[j] = in.readDouble();
+				}
+				if (kind==KIND_TAG_ID){
+					TagIdVector center = new TagIdVector(id, divNames, divValues);
+					center.tag = tag;
+					state.centers[i] = center;
+				}else{
+					state.centers[i] = new SparseVector(divNames, divValues);
+				}
+			}
+		}
+
+		int assignmentCount = readNullableCount(in, limit);
+		if (assignmentCount>=0){
+			state.assignments = new int[assignmentCount];
+			for (int i=0; i<assignmentCount; i++){
+				state.assignments[i] = in.readInt();
+			}
+		}
+		return state;
+	}
+
+	private static int readCount(DataInputStream in, long limit) throws IOException
+	{
+		int count = in.readInt();
+		if (count<0 || count>limit){
+			throw new IOException("检查点已损坏: 无效的个数 "+count);
+		}
+		return count;
+	}
+
+	//-1表示null - -1 means null
+	private static int readNullableCount(DataInputStream in, long limit) throws IOException
+	{
+		int count = in.readInt();
+		if (count<-1 || count>limit){
+			throw new IOException("检查点已损坏: 无效的个数 "+count);
+		}
+		return count;
+	}
+
+	private static void writeNullable(DataOutputStream out, Long value) throws IOException
+	{
+		out.writeBoolean(value!=null);
+		if (value!=null){
+			out.writeLong(value);
+		}
+	}
+
+	private static void writeNullable(DataOutputStream out, String value) throws IOException
+	{
+		out.writeBoolean(value!=null);
+		if (value!=null){
+			out.writeUTF(value);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.nuanxinli.ai.vector;
+
+import java.util.Map;
+
+/**
+ * 按存储区字典编号展开成稠密数组的一组中心, 供TagIdVector.tag给同一存储区的句柄打标签
+ * 每个句柄的维度复制到数组中一次, 然后用Kernels.gatherDot与每个中心求点积, 不再逐个维度按名称查找
+ * a set of centers expanded into dense arrays indexed by the dictionary of an arena, for TagIdVector.tag on handles of that arena.
+ * divisions of each handle are copied into arrays once, then dotted with every center by Kernels.gatherDot, instead of looking up division by division by name
+ * 不是线程安全的 - not thread safe
+ * @author 宋辉(Song Hui)
+ *
+ */
+final class DenseCenters {
+
+	//稠密数组元素总数的上限, 超过时不展开, 仍按名称查找 - upper bound of dense elements in total, beyond which centers are not expanded and names are looked up as before
+	static final long MAX_DENSE_ENTRIES = 1L << 23;
+
+	//每个中心一行, null中心对应null - one row per center, null for a null center
+	private final double[][] rows;
+	private int[] indexes = new int[16];
+	private double[] values = new double[16];
+
+	private DenseCenters(double[][] rows)
+	{
+		this.rows = rows;
+	}
+
+	/**
+	 * 所有向量都是同一存储区的句柄, 并且展开后不超过MAX_DENSE_ENTRIES时, 返回展开的中心, 否则返回null
+	 * expanded centers when all vectors are handles of one arena and the expansion fits in MAX_DENSE_ENTRIES, otherwise null
+	 */
+	static DenseCenters of(SparseVector[] vectors, SparseVector[] centers)
+	{
+		if (vectors.length==0 || !(vectors[0] instanceof ArenaVector)){
+			return null;
+		}
+		VectorArena arena = ((ArenaVector)vectors[0]).getArena();
+		for (SparseVector vector : vectors){
+			if (!(vector instanceof ArenaVector) || ((ArenaVector)vector).getArena()!=arena){
+				return null;
+			}
+		}
+		//句柄的维度都在它分配之前编号, 所以当前的字典大小足够容纳这些向量的所有维度
+		//divisions of a handle are numbered before it is allocated, so the current dictionary size covers all divisions of these vectors
+		int size = arena.divNameCount();
+		if ((long)size*centers.length > MAX_DENSE_ENTRIES){
+			return null;
+		}
+		double[][] rows = new double[centers.length][];
+		for (int c=0; c<centers.length; c++){
+			if (centers[c]==null){
+				continue;
+			}
+			rows[c] = new double[size];
+			for (Map.Entry<String, Double> entry : centers[c].getEntries()){
+				//字典中没有的维度不会出现在任何句柄中 - a division missing from the dictionary is in no handle
+				int index = arena.lookup(entry.getKey());
+				if (index>=0 && index<size){
+					rows[c][index] = entry.getValue();
+				}
+			}
+		}
+		return new DenseCenters(rows);
+	}
+
+	/**
+	 * 句柄与每个中心的点积, 写入scores(null中心按0计)
+	 * dot products of a handle with every center, written into scores(null centers score 0)
+	 */
+	void dotProducts(ArenaVector vector, double[] scores)
+	{
+		int length = vector.divCount();
+		if (indexes.length<length){
+			indexes = new int[Math.max(length, indexes.length*2)];
+			values = new double[indexes.length];
+		}
+		vector.copyTo(indexes, values);
+		for (int c=0; c<rows.length; c++){
+			scores[c] = (rows[c]==null) ? 0 : Kernels.gatherDot(indexes, values, length, rows[c]);
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package com.nuanxinli.ai.vector;
+
+/**
+ * 数组运算内核的实现接口, 由Kernels在运行时选择具体实现
+ * implementation interface of array kernels, Kernels selects one implementation at runtime
+ * 所有方法只处理数组的前length个元素 - all methods only handle the first length elements of arrays
+ * @author 宋辉(Song Hui)
+ *
+ */
+interface KernelProvider {
+
+	//实现名称, 用于日志和诊断 - name of the implementation, for logging and diagnosis
+	String name();
+
+	double sum(double[] values, int length);
+
+	double sumOfSquares(double[] values, int length);
+
+	double dot(double[] a, double[] b, int length);
+
+	float dot(float[] a, float[] b, int length);
+
+	//按下标数组从稠密数组中取值, 与values对应相乘后求和: Σ values[i]*dense[indexes[i]]
+	//gathers dense values by indexes, and sums products with values: Σ values[i]*dense[indexes[i]]
+	double gatherDot(int[] indexes, double[] values, int length, double[] dense);
+
+	//query与rows中前count行逐一求点积, 结果写入scores
+	//dot products of query with the first count rows, written into scores
+	void dotBatch(float[] query, float[][] rows, int count, float[] scores);
+}
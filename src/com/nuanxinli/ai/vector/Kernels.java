@@ -0,0 +1,108 @@
+package com.nuanxinli.ai.vector;
+
+import org.apache.log4j.Logger;
+
+/**
+ * 数组运算内核
+ * 在JDK 17及以上版本, 并且启动参数中加入了 --add-modules jdk.incubator.vector 时, 自动使用基于Vector API的SIMD实现(由多版本jar中的VectorKernels提供);
+ * 否则使用纯Java的标量实现. 也可以用系统属性 -Dsparsevector.kernels=scalar 强制使用标量实现
+ * array kernels.
+ * on JDK 17+ with --add-modules jdk.incubator.vector, a SIMD implementation based on the Vector API (VectorKernels in the multi-release jar) is selected automatically;
+ * otherwise the plain scalar implementation is used. The system property -Dsparsevector.kernels=scalar forces the scalar one.
+ * @author 宋辉(Song Hui)
+ *
+ */
+public final class Kernels {
+
+	//强制选择实现的系统属性名 - system property to force an implementation
+	public static final String PROPERTY = "sparsevector.kernels";
+
+	//多版本jar中SIMD实现的类名 - class name of the SIMD implementation in the multi-release jar
+	private static final String VECTOR_KERNELS = "com.nuanxinli.ai.vector.VectorKernels";
+
+	private static Logger logger = Logger.getLogger(Kernels.class);
+
+	private static final KernelProvider IMPL = select();
+
+	private Kernels() {
+	}
+
+	private static KernelProvider select()
+	{
+		if ("scalar".equalsIgnoreCase(System.getProperty(PROPERTY))){
+			return new ScalarKernels();
+		}
+		try {
+			KernelProvider provider = (KernelProvider) Class.forName(VECTOR_KERNELS).getDeclaredConstructor().newInstance();
+			//试算一次, 确认运行时确实能使用Vector API - a trial run, to make sure the Vector API really works at runtime
+			provider.sum(new double[]{1, 2, 3}, 3);
+			logger.info("使用SIMD数组运算内核: "+provider.name());
+			return provider;
+		} catch (ClassNotFoundException e) {
+			//不是多版本jar, 或者JDK版本低于17 - not a multi-release jar, or JDK is older than 17
+			return new ScalarKernels();
+		} catch (Exception | LinkageError e) {
+			//通常是没有加入 --add-modules jdk.incubator.vector - usually jdk.incubator.vector is not added
+			logger.debug("无法使用SIMD数组运算内核, 改用标量实现: "+e);
+			return new ScalarKernels();
+		}
+	}
+
+	/**
+	 * 当前使用的实现名称
+	 * name of the selected implementation
+	 */
+	public static String name()
+	{
+		return IMPL.name();
+	}
+
+	/**
+	 * 数组前length个元素之和
+	 * sum of the first length elements
+	 */
+	public static double sum(double[] values, int length)
+	{
+		return IMPL.sum(values, length);
+	}
+
+	/**
+	 * 数组前length个元素的平方和(即长度的平方)
+	 * sum of squares of the first length elements(the square of length)
+	 */
+	public static double sumOfSquares(double[] values, int length)
+	{
+		return IMPL.sumOfSquares(values, length);
+	}
+
+	/**
+	 * 稀疏数组与稠密数组的点积: Σ values[i]*dense[indexes[i]]
+	 * dot product of a sparse array and a dense array: Σ values[i]*dense[indexes[i]]
+	 * @param indexes 维度下标, 必须都在dense的范围内 - division indexes, must be in range of dense
+	 * @param values 与indexes对应的维度值 - values for indexes
+	 * @param length 有效元素个数 - count of valid elements
+	 * @param dense 稠密数组 - the dense array
+	 */
+	public static double gatherDot(int[] indexes, double[] values, int length, double[] dense)
+	{
+		return IMPL.gatherDot(indexes, values, length, dense);
+	}
+
+	/**
+	 * 两个数组前length个元素的点积
+	 * dot product of the first length elements
+	 */
+	public static float dot(float[] a, float[] b, int length)
+	{
+		return IMPL.dot(a, b, length);
+	}
+
+	/**
+	 * query与rows中前count行逐一求点积, 结果写入scores
+	 * dot products of query with the first count rows, written into scores
+	 */
+	public static void dotBatch(float[] query, float[][] rows, int count, float[] scores)
+	{
+		IMPL.dotBatch(query, rows, count, scores);
+	}
+}
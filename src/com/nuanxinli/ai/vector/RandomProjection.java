@@ -0,0 +1,154 @@
+package com.nuanxinli.ai.vector;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * 稀疏随机投影
+ * 把任意维度(以字符串命名)的稀疏向量, 映射为固定宽度的稠密float数组(草图), 草图之间的点积近似于原向量的点积(Johnson-Lindenstrauss引理)
+ * 投影矩阵不需要保存: 每个原始维度对应的投影列, 由维度名称的哈希值和种子确定地生成,
+ * 每一列只有nonZeros个非零元素, 取值为±1/sqrt(nonZeros) (即非常稀疏的Achlioptas投影)
+ * sparse random projection, maps sparse vectors with string named divisions into dense float sketches of fixed width,
+ * dot products of sketches approximate dot products of original vectors (Johnson-Lindenstrauss lemma).
+ * the projection matrix is never stored: the column of each division is derived from the hash of division name and the seed,
+ * and has exactly nonZeros entries of ±1/sqrt(nonZeros) (a very sparse Achlioptas projection).
+ * Very sparse random projections [https://dl.acm.org/doi/10.1145/1150402.1150436]
+ * @author 宋辉(Song Hui)
+ *
+ */
+public class RandomProjection {
+
+	//草图宽度 - width of sketches
+	private final int width;
+	//每个原始维度在草图中的非零元素个数 - count of non-zero entries for each division
+	private final int nonZeros;
+	//哈希种子, 相同的种子生成相同的投影 - hash seed, the same seed gives the same projection
+	private final long seed;
+	//非零元素的绝对值 - absolute value of non-zero entries
+	private final float scale;
+
+	/**
+	 * 初始化投影
+	 * constructor with 3 parameters
+	 * @param width 草图宽度 - width of sketches
+	 * @param nonZeros 每个原始维度在草图中的非零元素个数, 越大越精确, 投影也越慢 - count of non-zero entries for each division, larger is more accurate but slower
+	 * @param seed 哈希种子 - hash seed
+	 */
+	public RandomProjection(int width, int nonZeros, long seed)
+	{
+		if (width<=0 || nonZeros<=0 || nonZeros>width){
+			throw new IllegalArgumentException("无效的投影参数: width="+width+", nonZeros="+nonZeros);
+		}
+		this.width = width;
+		this.nonZeros = nonZeros;
+		this.seed = seed;
+		this.scale = (float)(1 / Math.sqrt(nonZeros));
+	}
+
+	/**
+	 * 初始化投影, 每个原始维度有4个非零元素, 种子为0
+	 * constructor with 1 parameter, 4 non-zero entries for each division, seed is 0
+	 * @param width 草图宽度 - width of sketches
+	 */
+	public RandomProjection(int width)
+	{
+		this(width, Math.min(4, width), 0);
+	}
+
+	/**
+	 * 草图宽度
+	 * width of sketches
+	 */
+	public int width()
+	{
+		return width;
+	}
+
+	/**
+	 * 把向量投影为新的草图
+	 * project a vector into a new sketch
+	 * @param vector 原始向量 - the vector
+	 * @return 草图 - the sketch
+	 */
+	public float[] project(SparseVector vector)
+	{
+		float[] sketch = new float[width];
+		projectInto(vector, sketch);
+		return sketch;
+	}
+
+	/**
+	 * 把向量投影到指定的草图数组中(原有内容会被覆盖), 以便重复使用数组
+	 * project a vector into a given sketch array(existing content will be overwritten), so the array can be reused
+	 * @param vector 原始向量 - the vector
+	 * @param sketch 草图数组, 长度必须等于width - the sketch array, its length must equal width
+	 */
+	public void projectInto(SparseVector vector, float[] sketch)
+	{
+		if (vector==null){
+			throw new IllegalArgumentException("不能投影null向量");
+		}
+		if (sketch.length!=width){
+			throw new IllegalArgumentException("草图长度应为"+width+", 实际为"+sketch.length);
+		}
+		Arrays.fill(sketch, 0f);
+		for (Map.Entry<String,Double> entry : vector.getEntries()){
+			float value = (float)(entry.getValue() * scale);
+			long h = seed ^ entry.getKey().hashCode();
+			for (int j=0; j<nonZeros; j++){
+				h = mix(h + j);
+				int position = (int)((h >>> 1) % width);
+				sketch[position] += ((h & 1)==0) ? value : -value;
+			}
+		}
+	}
+
+	//SplitMix64的混合函数, 把相邻的输入打散为均匀分布的64位哈希
+	//the finalizer of SplitMix64, spreads adjacent inputs into uniformly distributed 64 bit hashes
+	private static long mix(long z)
+	{
+		z += 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * 两个草图的点积
+	 * dot product of two sketches
+	 * @param a 草图 - a sketch
+	 * @param b 另一个草图 - another sketch
+	 * @return 点积 - dot product
+	 */
+	public static float dot(float[] a, float[] b)
+	{
+		if (a.length!=b.length){
+			throw new IllegalArgumentException("草图长度不一致: "+a.length+", "+b.length);
+		}
+		return Kernels.dot(a, b, a.length);
+	}
+
+	/**
+	 * 草图长度(模)
+	 * the length(norm) of a sketch
+	 * @param a 草图 - a sketch
+	 * @return 长度 - the length
+	 */
+	public static float norm(float[] a)
+	{
+		return (float)Math.sqrt(dot(a, a));
+	}
+
+	/**
+	 * 两个草图的余弦相似性, 任意一个为0向量时返回0
+	 * cosine similarity of two sketches, 0 if any one is a zero vector
+	 * @param a 草图 - a sketch
+	 * @param b 另一个草图 - another sketch
+	 * @return 余弦相似性 - cosine similarity
+	 */
+	public static float cosine(float[] a, float[] b)
+	{
+		float normProduct = norm(a) * norm(b);
+		return normProduct==0 ? 0 : dot(a, b) / normProduct;
+	}
+}
@@ -0,0 +1,103 @@
+package com.nuanxinli.ai.vector;
+
+/**
+ * 纯Java标量实现的数组运算内核, 适用于所有JDK版本
+ * array kernels in plain scalar Java, works on all JDK versions
+ * 循环做了4路展开, 打断浮点加法的依赖链, 以便JIT更好地流水化
+ * loops are unrolled by 4 to break the dependency chain of floating point additions
+ * @author 宋辉(Song Hui)
+ *
+ */
+final class ScalarKernels implements KernelProvider {
+
+	@Override
+	public String name()
+	{
+		return "scalar";
+	}
+
+	@Override
+	public double sum(double[] values, int length)
+	{
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = 0;
+		int bound = length & ~3;
+		for (; i<bound; i+=4){
+			s0 += values[i];
+			s1 += values[i+1];
+			s2 += values[i+2];
+			s3 += values[i+3];
+		}
+		for (; i<length; i++){
+			s0 += values[i];
+		}
+		return (s0+s1) + (s2+s3);
+	}
+
+	@Override
+	public double sumOfSquares(double[] values, int length)
+	{
+		return dot(values, values, length);
+	}
+
+	@Override
+	public double dot(double[] a, double[] b, int length)
+	{
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = 0;
+		int bound = length & ~3;
+		for (; i<bound; i+=4){
+			s0 += a[i]*b[i];
+			s1 += a[i+1]*b[i+1];
+			s2 += a[i+2]*b[i+2];
+			s3 += a[i+3]*b[i+3];
+		}
+		for (; i<length; i++){
+			s0 += a[i]*b[i];
+		}
+		return (s0+s1) + (s2+s3);
+	}
+
+	@Override
+	public float dot(float[] a, float[] b, int length)
+	{
+		float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = 0;
+		int bound = length & ~3;
+		for (; i<bound; i+=4){
+			s0 += a[i]*b[i];
+			s1 += a[i+1]*b[i+1];
+			s2 += a[i+2]*b[i+2];
+			s3 += a[i+3]*b[i+3];
+		}
+		for (; i<length; i++){
+			s0 += a[i]*b[i];
+		}
+		return (s0+s1) + (s2+s3);
+	}
+
+	@Override
+	public double gatherDot(int[] indexes, double[] values, int length, double[] dense)
+	{
+		double s0 = 0, s1 = 0;
+		int i = 0;
+		int bound = length & ~1;
+		for (; i<bound; i+=2){
+			s0 += values[i]*dense[indexes[i]];
+			s1 += values[i+1]*dense[indexes[i+1]];
+		}
+		if (i<length){
+			s0 += values[i]*dense[indexes[i]];
+		}
+		return s0 + s1;
+	}
+
+	@Override
+	public void dotBatch(float[] query, float[][] rows, int count, float[] scores)
+	{
+		int length = query.length;
+		for (int r=0; r<count; r++){
+			scores[r] = dot(query, rows[r], length);
+		}
+	}
+}
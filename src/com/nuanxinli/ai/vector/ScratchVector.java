@@ -0,0 +1,362 @@
+package com.nuanxinli.ai.vector;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * 可重复使用的临时向量
+ * 用于请求处理中"构造一个临时向量, 打分, 然后丢弃"的场景: 维度保存在并行数组中, 另有一个开放寻址的下标表用于按名称查找,
+ * clear()只清除已使用的位置而不释放数组, 所以在容量足够时, 反复load/打分不会产生任何对象分配
+ * 计算点积时, 总是由本向量遍历自身维度, 到另一个向量中按基本类型查值, 与普通向量、ScratchVector或ArenaVector计算都不会产生装箱对象
+ * a reusable scratch vector.
+ * for the "build a temp vector, score it, then discard it" pattern in request handling: divisions are stored in parallel arrays,
+ * with an open addressing slot table for lookups by name. clear() only resets used positions without releasing arrays,
+ * so repeated load/scoring allocates nothing once the capacity is enough.
+ * in dot products, this vector always iterates its own divisions and looks up primitive values of the other one,
+ * so no boxing happens with ordinary vectors, ScratchVectors or ArenaVectors.
+ * 非线程安全, 每个线程应使用自己的实例(见local()) - not thread safe, each thread should use its own instance(see local())
+ * @author 宋辉(Song Hui)
+ *
+ */
+public final class ScratchVector extends TagIdVector {
+
+	//缺省容量 - default capacity
+	public static final int DEFAULT_CAPACITY = 64;
+
+	//每个线程一个的实例 - one instance per thread
+	private static final ThreadLocal<ScratchVector> LOCAL = ThreadLocal.withInitial(()->new ScratchVector(DEFAULT_CAPACITY));
+
+	//维度名称和维度值, 前size个有效 - division names and values, the first size ones are valid
+	private String[] names;
+	private double[] values;
+	//每个维度在下标表中的位置, 用于clear()时只清除用过的位置 - slot of each division, so that clear() only resets used slots
+	private int[] slotOf;
+	private int size;
+	//开放寻址的下标表, 保存维度位置+1, 0表示空 - open addressing slot table, holds position+1 of divisions, 0 means empty
+	private int[] slots;
+
+	/**
+	 * 初始化向量, 容量为DEFAULT_CAPACITY
+	 * constructor with no parameter, capacity is DEFAULT_CAPACITY
+	 */
+	public ScratchVector()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * 按预计的维度个数初始化向量, 维度个数不超过容量时不会再分配内存
+	 * constructor with expected count of divisions, no more allocation happens while the count stays within the capacity
+	 * @param capacity 预计的维度个数 - expected count of divisions
+	 */
+	public ScratchVector(int capacity)
+	{
+		super((Long)null);
+		allocate(Math.max(1, capacity));
+	}
+
+	/**
+	 * 获取当前线程的实例, 返回前已清空
+	 * get the instance of current thread, cleared before returned
+	 * @return 当前线程的实例 - the instance of current thread
+	 */
+	public static ScratchVector local()
+	{
+		ScratchVector vector = LOCAL.get();
+		vector.clear();
+		return vector;
+	}
+
+	private void allocate(int capacity)
+	{
+		names = new String[capacity];
+		values = new double[capacity];
+		slotOf = new int[capacity];
+		//下标表的大小是容量的2倍以上的2的幂, 负载不超过一半 - table size is a power of two no less than twice the capacity, load stays under half
+		slots = new int[Integer.highestOneBit(capacity*2-1) << 1];
+	}
+
+	/**
+	 * 清空向量(包括id和tag), 保留已分配的数组
+	 * clear this vector(including id and tag), keeping allocated arrays
+	 */
+	public void clear()
+	{
+		for (int i=0; i<size; i++){
+			slots[slotOf[i]] = 0;
+			names[i] = null;
+		}
+		size = 0;
+		id = null;
+		tag = null;
+		modified();
+	}
+
+	/**
+	 * 清空后用并行数组批量载入维度, 相同的维度以后出现的值为准
+	 * clear and bulk load divisions from parallel arrays, the later value wins for duplicated divisions
+	 * @param divNames 维度名称 - division names
+	 * @param divValues 维度值 - division values
+	 */
+	public void load(String[] divNames, double[] divValues)
+	{
+		load(divNames, divValues, divNames.length);
+	}
+
+	/**
+	 * 清空后用并行数组的前length个元素批量载入维度, 相同的维度以后出现的值为准
+	 * clear and bulk load divisions from the first length elements of parallel arrays, the later value wins for duplicated divisions
+	 * @param divNames 维度名称 - division names
+	 * @param divValues 维度值 - division values
+	 * @param length 载入的个数 - count to load
+	 */
+	public void load(String[] divNames, double[] divValues, int length)
+	{
+		clear();
+		ensureCapacity(length);
+		for (int i=0; i<length; i++){
+			put(divNames[i], divValues[i], false);
+		}
+	}
+
+	/**
+	 * 保证能容纳指定个数的维度
+	 * make sure the given count of divisions fits
+	 * @param capacity 维度个数 - count of divisions
+	 */
+	public void ensureCapacity(int capacity)
+	{
+		if (capacity<=names.length){
+			return;
+		}
+		String[] oldNames = names;
+		double[] oldValues = values;
+		int oldSize = size;
+		allocate(Math.max(capacity, names.length*2));
+		size = 0;
+		for (int i=0; i<oldSize; i++){
+			put(oldNames[i], oldValues[i], false);
+		}
+	}
+
+	/**
+	 * 当前容量
+	 * current capacity
+	 */
+	public int capacity()
+	{
+		return names.length;
+	}
+
+	//查找维度的位置, 找不到返回-1 - position of a division, -1 if missing
+	private int find(String divName)
+	{
+		int mask = slots.length - 1;
+		int slot = hash(divName) & mask;
+		while (true){
+			int entry = slots[slot];
+			if (entry==0){
+				return -1;
+			}
+			String name = names[entry-1];
+			if (name==divName || name.equals(divName)){
+				return entry-1;
+			}
+			slot = (slot+1) & mask;
+		}
+	}
+
+	//设置或累加维度的值 - set or add value of a division
+	private void put(String divName, double value, boolean add)
+	{
+		int mask = slots.length - 1;
+		int slot = hash(divName) & mask;
+		while (true){
+			int entry = slots[slot];
+			if (entry==0){
+				break;
+			}
+			String name = names[entry-1];
+			if (name==divName || name.equals(divName)){
+				values[entry-1] = add ? values[entry-1]+value : value;
+				return;
+			}
+			slot = (slot+1) & mask;
+		}
+		if (size==names.length){
+			ensureCapacity(size+1);
+			put(divName, value, add);
+			return;
+		}
+		names[size] = divName;
+		values[size] = value;
+		slotOf[size] = slot;
+		slots[slot] = ++size;
+	}
+
+	private static int hash(String divName)
+	{
+		int h = divName.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	@Override
+	public void setDiv(String divName, double divValue)
+	{
+		put(divName, divValue, false);
+		modified();
+	}
+
+	@Override
+	public void addDiv(String divName, double addValue)
+	{
+		put(divName, addValue, true);
+		modified();
+	}
+
+	@Override
+	public Double getDivValue(String divName)
+	{
+		int position = find(divName);
+		return position<0 ? null : values[position];
+	}
+
+	@Override
+	double valueOrZero(String divName)
+	{
+		int position = find(divName);
+		return position<0 ? 0 : values[position];
+	}
+
+	@Override
+	public Double removeDiv(String divName)
+	{
+		int position = find(divName);
+		if (position<0){
+			return null;
+		}
+		double removed = values[position];
+		//用最后一个维度填补空位, 然后重建下标表 - fill the hole with the last division, then rebuild the slot table
+		int last = size - 1;
+		names[position] = names[last];
+		values[position] = values[last];
+		names[last] = null;
+		size = last;
+		Arrays.fill(slots, 0);
+		int mask = slots.length - 1;
+		for (int i=0; i<size; i++){
+			int slot = hash(names[i]) & mask;
+			while (slots[slot]!=0){
+				slot = (slot+1) & mask;
+			}
+			slots[slot] = i+1;
+			slotOf[i] = slot;
+		}
+		modified();
+		return removed;
+	}
+
+	@Override
+	public int divCount()
+	{
+		return size;
+	}
+
+	@Override
+	boolean drivesDotProduct()
+	{
+		return true;
+	}
+
+	@Override
+	public double dotProduct(SparseVector vector)
+	{
+		if (vector==null){
+			return 0;
+		}
+		double product = 0;
+		for (int i=0; i<size; i++){
+			product += values[i] * vector.valueOrZero(names[i]);
+		}
+		return product;
+	}
+
+	//内容随时会变, 不使用缓存 - contents change all the time, so no cache is used
+	@Override
+	public double squareOfLength(boolean updateCache)
+	{
+		return Kernels.sumOfSquares(values, size);
+	}
+
+	@Override
+	public double sum(boolean updateCache)
+	{
+		return Kernels.sum(values, size);
+	}
+
+	@Override
+	public Set<Entry<String, Double>> getEntries()
+	{
+		return new AbstractSet<Entry<String, Double>>() {
+			@Override
+			public Iterator<Entry<String, Double>> iterator()
+			{
+				return new Iterator<Entry<String, Double>>() {
+					private int i = 0;
+
+					@Override
+					public boolean hasNext()
+					{
+						return i<size;
+					}
+
+					@Override
+					public Entry<String, Double> next()
+					{
+						if (i>=size){
+							throw new NoSuchElementException();
+						}
+						int position = i++;
+						return new AbstractMap.SimpleImmutableEntry<>(names[position], values[position]);
+					}
+				};
+			}
+
+			@Override
+			public int size()
+			{
+				return size;
+			}
+		};
+	}
+
+	@Override
+	Map<String, Double> asMap()
+	{
+		return new AbstractMap<String, Double>() {
+			@Override
+			public Set<Entry<String, Double>> entrySet()
+			{
+				return getEntries();
+			}
+
+			@Override
+			public Double get(Object key)
+			{
+				return (key instanceof String) ? getDivValue((String)key) : null;
+			}
+
+			@Override
+			public boolean containsKey(Object key)
+			{
+				return (key instanceof String) && find((String)key)>=0;
+			}
+		};
+	}
+}
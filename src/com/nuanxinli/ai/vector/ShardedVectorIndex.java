@@ -0,0 +1,389 @@
+package com.nuanxinli.ai.vector;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * 分片的向量索引
+ * 按id的哈希值把TagIdVector分到N个分片中, 每个分片独立存储; 查询时并行扫描所有分片, 再合并各分片的部分结果
+ * 分片使用ConcurrentHashMap存储, 查询过程中可以同时插入和删除向量(查询看到的是弱一致的快照), 适合一个JVM同时服务大量打标签请求
+ * 每个分片的索引就是按id的哈希表, 用于加入、删除和按id查找; 相似性查询在分片内逐个精确计分, 没有再为每个分片建立相似性索引
+ * (如SketchIndex或倒排索引): 近似索引会让结果不再精确, 而倒排索引无法剪掉得分为0或为负的向量(它们在结果不足k个时仍要参与排名)
+ * 注意: 向量加入索引后不应再修改其维度, 需要修改时应先删除再重新加入
+ * a sharded vector index.
+ * TagIdVectors are partitioned into N shards by the hash of id, each shard has its own storage;
+ * queries scan all shards in parallel and merge partial results.
+ * shards are backed by ConcurrentHashMap, so vectors can be inserted and deleted while queries are running(queries see a weakly consistent view).
+ * the index of each shard is its hash table by id, for put, remove and lookup by id; similarity queries score every vector of a shard exactly,
+ * and no similarity index(like SketchIndex or an inverted index) is built per shard: an approximate index would make results inexact,
+ * and an inverted index cannot prune vectors scoring 0 or below(they still rank when fewer than k results exist).
+ * note: divisions of a vector should not be modified after it is indexed, remove it and put it again instead.
+ * 线程安全 - thread safe
+ * @author 宋辉(Song Hui)
+ *
+ */
+public class ShardedVectorIndex implements Closeable {
+
+	/**
+	 * 查询结果: 向量及其得分
+	 * a query result: the vector and its score
+	 */
+	public static final class Hit {
+		private final TagIdVector vector;
+		private final double score;
+
+		Hit(TagIdVector vector, double score)
+		{
+			this.vector = vector;
+			this.score = score;
+		}
+
+		public TagIdVector getVector()
+		{
+			return vector;
+		}
+
+		/**
+		 * 得分, 含义取决于查询方法: 距离的平方, 余弦相似性或点积
+		 * the score, depends on the query method: square of distance, cosine similarity or dot product
+		 */
+		public double getScore()
+		{
+			return score;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Hit{id="+vector.id+", tag="+vector.tag+", score="+score+"}";
+		}
+	}
+
+	//查询的计分方法 - scoring method of a query
+	@FunctionalInterface
+	interface Scorer {
+		double score(SparseVector query, TagIdVector vector);
+	}
+
+	//得分越大越好的排序, 得分相同时id小的优先 - larger score is better, smaller id wins ties
+	private static final Comparator<Hit> LARGER_FIRST = (h1, h2)->{
+		int result = Double.compare(h2.score, h1.score);
+		return result!=0 ? result : Long.compare(h1.vector.id, h2.vector.id);
+	};
+	//得分越小越好的排序, 得分相同时id小的优先 - smaller score is better, smaller id wins ties
+	private static final Comparator<Hit> SMALLER_FIRST = (h1, h2)->{
+		int result = Double.compare(h1.score, h2.score);
+		return result!=0 ? result : Long.compare(h1.vector.id, h2.vector.id);
+	};
+
+	//各个分片 - the shards
+	private final List<ConcurrentHashMap<Long, TagIdVector>> shards;
+	//执行分片查询的线程池 - executor for shard queries
+	private final ExecutorService executor;
+	//线程池是否由本索引创建(关闭索引时一并关闭) - whether the executor is created by this index(shut down on close)
+	private final boolean ownExecutor;
+
+	private static Logger logger = Logger.getLogger(ShardedVectorIndex.class);
+
+	/**
+	 * 初始化索引, 创建与分片数相同线程数的线程池
+	 * constructor with 1 parameter, creates a thread pool with one thread per shard
+	 * @param shardCount 分片数 - count of shards
+	 */
+	public ShardedVectorIndex(int shardCount)
+	{
+		this(shardCount, newExecutor(shardCount), true);
+	}
+
+	/**
+	 * 初始化索引, 使用外部提供的线程池(关闭索引时不会关闭它)
+	 * 不要在该线程池的任务中调用本索引的查询方法, 否则线程池满时可能死锁
+	 * constructor with 2 parameters, uses an external executor(not shut down on close).
+	 * do not query this index from tasks of the same executor, or it may deadlock when the executor is saturated
+	 * @param shardCount 分片数 - count of shards
+	 * @param executor 执行分片查询的线程池 - executor for shard queries
+	 */
+	public ShardedVectorIndex(int shardCount, ExecutorService executor)
+	{
+		this(shardCount, executor, false);
+	}
+
+	private ShardedVectorIndex(int shardCount, ExecutorService executor, boolean ownExecutor)
+	{
+		if (shardCount<=0){
+			throw new IllegalArgumentException("分片数必须大于0: "+shardCount);
+		}
+		this.shards = new ArrayList<>(shardCount);
+		for (int i=0; i<shardCount; i++){
+			shards.add(new ConcurrentHashMap<>());
+		}
+		this.executor = executor;
+		this.ownExecutor = ownExecutor;
+	}
+
+	private static ExecutorService newExecutor(int shardCount)
+	{
+		AtomicInteger counter = new AtomicInteger();
+		return Executors.newFixedThreadPool(Math.max(1, shardCount), runnable->{
+			Thread thread = new Thread(runnable, "vector-shard-"+counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	//向量所属的分片 - the shard of a vector
+	private ConcurrentHashMap<Long, TagIdVector> shardOf(Long id)
+	{
+		long h = id * 0x9E3779B97F4A7C15L;
+		int index = (int)((h ^ (h >>> 32)) & 0x7fffffff) % shards.size();
+		return shards.get(index);
+	}
+
+	/**
+	 * 加入向量, 已有相同id的向量会被替换
+	 * put a vector, the one with the same id will be replaced
+	 * @param vector 向量, id不能为空 - the vector, its id must not be null
+	 * @return 被替换的向量, 没有则为null - the replaced vector, or null
+	 */
+	public TagIdVector put(TagIdVector vector)
+	{
+		if (vector.id==null){
+			throw new IllegalArgumentException("加入索引的向量必须有id: "+vector);
+		}
+		return shardOf(vector.id).put(vector.id, vector);
+	}
+
+	/**
+	 * 删除向量
+	 * remove a vector
+	 * @param id 向量id - id of the vector
+	 * @return 被删除的向量, 没有则为null - the removed vector, or null
+	 */
+	public TagIdVector remove(Long id)
+	{
+		return shardOf(id).remove(id);
+	}
+
+	/**
+	 * 获取向量
+	 * get a vector
+	 * @param id 向量id - id of the vector
+	 * @return 向量, 没有则为null - the vector, or null
+	 */
+	public TagIdVector get(Long id)
+	{
+		return shardOf(id).get(id);
+	}
+
+	/**
+	 * 索引中的向量总数
+	 * count of vectors in the index
+	 */
+	public int size()
+	{
+		int size = 0;
+		for (ConcurrentHashMap<Long, TagIdVector> shard : shards){
+			size += shard.size();
+		}
+		return size;
+	}
+
+	/**
+	 * 分片数
+	 * count of shards
+	 */
+	public int shardCount()
+	{
+		return shards.size();
+	}
+
+	/**
+	 * 求与查询向量距离最近的向量, 得分为距离的平方
+	 * find the nearest vector, score is the square of distance
+	 * @param query 查询向量 - the query vector
+	 * @return 结果, 索引为空时返回null - the result, null if the index is empty
+	 */
+	public Hit nearest(SparseVector query)
+	{
+		return first(search(query, 1, (q, v)->q.squareOfDistance(v), SMALLER_FIRST));
+	}
+
+	/**
+	 * 求与查询向量夹角最小(余弦相似性最大)的向量
+	 * find the vector with maximal cosine similarity
+	 * @param query 查询向量 - the query vector
+	 * @return 结果, 索引为空时返回null - the result, null if the index is empty
+	 */
+	public Hit cloest(SparseVector query)
+	{
+		return first(topCloest(query, 1));
+	}
+
+	/**
+	 * 求与查询向量点积最大的向量
+	 * find the vector with maximal dot product
+	 * @param query 查询向量 - the query vector
+	 * @return 结果, 索引为空时返回null - the result, null if the index is empty
+	 */
+	public Hit maxDotProduction(SparseVector query)
+	{
+		return first(topDotProduction(query, 1));
+	}
+
+	/**
+	 * 求与查询向量距离最近的k个向量, 按距离从近到远排列
+	 * find the k nearest vectors, ascending by distance
+	 */
+	public List<Hit> topNearest(SparseVector query, int k)
+	{
+		return search(query, k, (q, v)->q.squareOfDistance(v), SMALLER_FIRST);
+	}
+
+	/**
+	 * 求余弦相似性最大的k个向量, 按相似性从高到低排列
+	 * find top k vectors by cosine similarity, descending by similarity
+	 */
+	public List<Hit> topCloest(SparseVector query, int k)
+	{
+		return search(query, k, (q, v)->q.cosineSimilarity(v), LARGER_FIRST);
+	}
+
+	/**
+	 * 求点积最大的k个向量, 按点积从大到小排列
+	 * find top k vectors by dot product, descending by dot product
+	 */
+	public List<Hit> topDotProduction(SparseVector query, int k)
+	{
+		return search(query, k, (q, v)->q.dotProduct(v), LARGER_FIRST);
+	}
+
+	private static Hit first(List<Hit> hits)
+	{
+		return hits.isEmpty() ? null : hits.get(0);
+	}
+
+	//并行查询所有分片, 合并各分片的前k个结果
+	//query all shards in parallel, and merge top k results of each shard
+	private List<Hit> search(SparseVector query, int k, Scorer scorer, Comparator<Hit> order)
+	{
+		if (k<=0){
+			return Collections.emptyList();
+		}
+		List<Future<List<Hit>>> futures = new ArrayList<>(shards.size());
+		for (ConcurrentHashMap<Long, TagIdVector> shard : shards){
+			futures.add(executor.submit(()->searchShard(shard, query, k, scorer, order)));
+		}
+		//按实际向量数确定初始容量, k很大时不预先分配 - initial capacity by the actual count, nothing preallocated for a huge k
+		PriorityQueue<Hit> merged = new PriorityQueue<>(Math.min(k, size())+1, order.reversed());
+		try {
+			for (Future<List<Hit>> future : futures){
+				for (Hit hit : future.get()){
+					offer(merged, hit, k, order);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cancel(futures);
+			throw new RuntimeException("分片查询被中断", e);
+		} catch (ExecutionException e) {
+			cancel(futures);
+			logger.error("分片查询失败", e.getCause());
+			throw new RuntimeException("分片查询失败", e.getCause());
+		}
+		return drain(merged, order);
+	}
+
+	//查询一个分片的前k个结果 - top k results of one shard
+	static List<Hit> searchShard(ConcurrentHashMap<Long, TagIdVector> shard, SparseVector query, int k, Scorer scorer, Comparator<Hit> order)
+	{
+		//大小为k的堆, 堆顶是当前最差的结果 - a heap of size k, the worst result on top
+		PriorityQueue<Hit> heap = new PriorityQueue<>(Math.min(k, shard.size())+1, order.reversed());
+		//堆中每个id对应的结果 - the hit of each id in the heap
+		Map<Long, Hit> inHeap = new HashMap<>(Math.min(k, shard.size())*2+1);
+		for (TagIdVector vector : shard.values()){
+			double score = scorer.score(query, vector);
+			//NaN(如空向量的余弦相似性0/0)不参与排名, 与SparseVector.cloest用>比较、从不选中NaN一致
+			//NaN(e.g. cosine similarity 0/0 of an empty vector) is never ranked, as SparseVector.cloest compares with > and never picks NaN
+			if (Double.isNaN(score)){
+				continue;
+			}
+			offer(heap, inHeap, new Hit(vector, score), k, order);
+		}
+		return drain(heap, order);
+	}
+
+	//遍历期间同一id被删除后又加入时, 弱一致的遍历可能两次遇到它; 放入堆时就去重, 只保留排名靠前的一个, 这样堆中始终是k个不同的id;
+	//同一id总在同一分片中, 所以分片内去重即可
+	//an id removed and put again during the traversal may be met twice by the weakly consistent iterator; deduplicate while offering,
+	//keeping the better ranked one, so the heap always holds k distinct ids; an id always lives in the same shard, so deduplicating within a shard is enough
+	private static void offer(PriorityQueue<Hit> heap, Map<Long, Hit> inHeap, Hit hit, int k, Comparator<Hit> order)
+	{
+		Hit existing = inHeap.get(hit.vector.id);
+		if (existing!=null){
+			if (order.compare(hit, existing)<0){
+				heap.remove(existing);
+				heap.add(hit);
+				inHeap.put(hit.vector.id, hit);
+			}
+			return;
+		}
+		if (heap.size()<k){
+			heap.add(hit);
+			inHeap.put(hit.vector.id, hit);
+		}else if (order.compare(hit, heap.peek())<0){
+			inHeap.remove(heap.poll().vector.id);
+			heap.add(hit);
+			inHeap.put(hit.vector.id, hit);
+		}
+	}
+
+	private static void offer(PriorityQueue<Hit> heap, Hit hit, int k, Comparator<Hit> order)
+	{
+		if (heap.size()<k){
+			heap.add(hit);
+		}else if (order.compare(hit, heap.peek())<0){
+			heap.poll();
+			heap.add(hit);
+		}
+	}
+
+	private static List<Hit> drain(PriorityQueue<Hit> heap, Comparator<Hit> order)
+	{
+		List<Hit> hits = new ArrayList<>(heap);
+		hits.sort(order);
+		return hits;
+	}
+
+	private static void cancel(List<Future<List<Hit>>> futures)
+	{
+		for (Future<List<Hit>> future : futures){
+			future.cancel(true);
+		}
+	}
+
+	/**
+	 * 关闭索引; 如果线程池由本索引创建, 一并关闭
+	 * close the index, and shut down the executor if it is created by this index
+	 */
+	@Override
+	public void close()
+	{
+		if (ownExecutor){
+			executor.shutdown();
+		}
+	}
+}
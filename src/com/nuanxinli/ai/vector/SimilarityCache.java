@@ -0,0 +1,305 @@
+package com.nuanxinli.ai.vector;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * 相似性结果缓存
+ * 对同一组中心向量反复计算相同(内容相同)的查询向量时, 直接返回以前的计算结果
+ * 缓存以查询向量的内容哈希为键, 并记录中心向量组的版本; 中心向量组被替换, 或者其中任意一个中心被修改时, 缓存自动失效
+ * 缓存容量有上限, 超出时按LRU(最近最少使用)规则淘汰
+ * a bounded cache for similarity results between query vectors and a set of centers.
+ * results are keyed by the content of query vector, and the whole cache is invalidated
+ * when the centers are replaced or any of them is modified. Entries are evicted in LRU order.
+ * 线程安全 - thread safe
+ * @author 宋辉(Song Hui)
+ *
+ */
+public class SimilarityCache {
+
+	//缓存的结果类型 - kinds of cached results
+	private static final int KIND_COSINE = 0;
+	private static final int KIND_DOT = 1;
+
+	//中心向量组 - the centers
+	private SparseVector[] centers;
+	//中心向量组的版本, 每次替换中心向量组时加1 - version of centers, increased when centers are replaced
+	private long centersVersion;
+	//中心向量修改计数器之和, 用于发现中心向量被就地修改 - sum of modification counters of centers, to detect in-place changes
+	private long centersStamp;
+	//最大缓存条数 - max count of cached entries
+	private final int maxSize;
+	//按访问顺序排列的LinkedHashMap, 实现LRU淘汰 - a LinkedHashMap in access order, to implement LRU eviction
+	private final LinkedHashMap<Key, double[]> entries;
+
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+
+	private static Logger logger = Logger.getLogger(SimilarityCache.class);
+
+	/**
+	 * 初始化缓存
+	 * constructor with 2 parameters
+	 * @param centers 中心向量组(其中可以有null值, 按原有方法的规则处理) - the centers(null item is handled as before)
+	 * @param maxSize 最大缓存条数 - max count of cached entries
+	 */
+	public SimilarityCache(SparseVector[] centers, int maxSize)
+	{
+		if (maxSize<=0){
+			throw new IllegalArgumentException("缓存容量必须大于0: "+maxSize);
+		}
+		this.maxSize = maxSize;
+		this.entries = new LinkedHashMap<Key, double[]>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, double[]> eldest) {
+				if (size() > SimilarityCache.this.maxSize){
+					evictionCount++;
+					return true;
+				}
+				return false;
+			}
+		};
+		setCenters(centers);
+	}
+
+	/**
+	 * 替换中心向量组, 所有缓存结果随之失效
+	 * replace the centers, all cached results will be invalidated
+	 * @param centers 新的中心向量组 - new centers
+	 */
+	public synchronized void setCenters(SparseVector[] centers)
+	{
+		this.centers = centers;
+		this.centersVersion++;
+		this.centersStamp = stampOf(centers);
+		entries.clear();
+	}
+
+	/**
+	 * 获取当前的中心向量组
+	 * get current centers
+	 * @return 中心向量组 - the centers
+	 */
+	public synchronized SparseVector[] getCenters()
+	{
+		return centers;
+	}
+
+	/**
+	 * 清空缓存
+	 * clear all cached results
+	 */
+	public synchronized void invalidate()
+	{
+		entries.clear();
+		centersStamp = stampOf(centers);
+	}
+
+	/**
+	 * 查询向量与每一个中心的余弦相似性
+	 * cosine similarities between the query vector and each center
+	 * @param vector 查询向量 - the query vector
+	 * @return 与各个中心的余弦相似性, 中心为null的位置为0 - similarities to each center, 0 for null center
+	 */
+	public double[] cosineSimilarities(SparseVector vector)
+	{
+		return lookup(vector, KIND_COSINE).clone();
+	}
+
+	/**
+	 * 查询向量与每一个中心的点积
+	 * dot products between the query vector and each center
+	 * @param vector 查询向量 - the query vector
+	 * @return 与各个中心的点积, 中心为null的位置为0 - dot products to each center, 0 for null center
+	 */
+	public double[] dotProducts(SparseVector vector)
+	{
+		return lookup(vector, KIND_DOT).clone();
+	}
+
+	/**
+	 * 带缓存的SparseVector.cloest
+	 * cached version of SparseVector.cloest
+	 * @param vector 查询向量 - the query vector
+	 * @return 夹角最小的中心的索引 - the index of closest center
+	 */
+	public int cloest(SparseVector vector)
+	{
+		return SparseVector.maxIndex(lookup(vector, KIND_COSINE));
+	}
+
+	/**
+	 * 带缓存的SparseVector.maxDotProduction
+	 * cached version of SparseVector.maxDotProduction
+	 * @param vector 查询向量 - the query vector
+	 * @return 点积最大的中心的索引 - the index of center with maximal dot product
+	 */
+	public int maxDotProduction(SparseVector vector)
+	{
+		return SparseVector.maxIndex(lookup(vector, KIND_DOT));
+	}
+
+	//查找缓存, 未命中时计算并写入缓存
+	//look up the cache, compute and store the result when missing
+	private double[] lookup(SparseVector vector, int kind)
+	{
+		Map<String, Double> content = vector.asMap();
+		Key probe = new Key(kind, content.hashCode(), content);
+		SparseVector[] current;
+		long version;
+		long stamp;
+		synchronized (this){
+			checkCenters();
+			double[] result = entries.get(probe);
+			if (result!=null){
+				hitCount++;
+				return result;
+			}
+			missCount++;
+			current = centers;
+			version = centersVersion;
+			stamp = centersStamp;
+		}
+
+		//在锁外计算, 避免阻塞其他查询 - compute outside the lock, not to block other lookups
+		double[] result = compute(vector, current, kind);
+
+		synchronized (this){
+			//计算期间中心向量组被替换或被就地修改了, 结果可能已过期, 直接返回但不缓存
+			//centers replaced or modified in place while computing, the result may be stale, do not cache
+			//修改计数器只增不减, 所以戳相同就说明中心没有被修改过 - modification counters never decrease, so an equal stamp means no change
+			if (version==centersVersion && stamp==stampOf(current)){
+				entries.put(new Key(kind, probe.hash, new HashMap<>(content)), result);
+			}
+		}
+		return result;
+	}
+
+	//如果有中心向量被就地修改过, 清空缓存
+	//clear the cache if any center has been modified in place
+	private void checkCenters()
+	{
+		long stamp = stampOf(centers);
+		if (stamp!=centersStamp){
+			logger.debug("中心向量已改变, 清空相似性缓存");
+			entries.clear();
+			centersStamp = stamp;
+		}
+	}
+
+	private static long stampOf(SparseVector[] centers)
+	{
+		long stamp = 0;
+		for (SparseVector center : centers){
+			if (center!=null){
+				stamp += center.modCount();
+			}
+		}
+		return stamp;
+	}
+
+	private static double[] compute(SparseVector vector, SparseVector[] centers, int kind)
+	{
+		double[] result = new double[centers.length];
+		for (int i=0; i<centers.length; i++){
+			SparseVector center = centers[i];
+			if (center==null){
+				continue;
+			}
+			result[i] = (kind==KIND_COSINE) ? vector.cosineSimilarity(center) : vector.dotProduct(center);
+		}
+		return result;
+	}
+
+	/**
+	 * 命中次数
+	 * count of cache hits
+	 */
+	public synchronized long hitCount()
+	{
+		return hitCount;
+	}
+
+	/**
+	 * 未命中次数
+	 * count of cache misses
+	 */
+	public synchronized long missCount()
+	{
+		return missCount;
+	}
+
+	/**
+	 * 因容量限制被淘汰的条数
+	 * count of entries evicted by the size limit
+	 */
+	public synchronized long evictionCount()
+	{
+		return evictionCount;
+	}
+
+	/**
+	 * 命中率, 尚未查询过时为0
+	 * hit rate, 0 if no lookup yet
+	 */
+	public synchronized double hitRate()
+	{
+		long total = hitCount + missCount;
+		return total==0 ? 0 : (double)hitCount / (double)total;
+	}
+
+	/**
+	 * 当前缓存条数
+	 * count of cached entries
+	 */
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "SimilarityCache{size="+entries.size()+", hits="+hitCount+", misses="+missCount+", evictions="+evictionCount+"}";
+	}
+
+	//缓存键: 结果类型 + 查询向量内容
+	//cache key: result kind + content of query vector
+	private static final class Key {
+		final int kind;
+		final int hash;
+		final Map<String, Double> content;
+
+		Key(int kind, int hash, Map<String, Double> content)
+		{
+			this.kind = kind;
+			this.hash = hash;
+			this.content = content;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash*31 + kind;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (this==obj){
+				return true;
+			}
+			if (!(obj instanceof Key)){
+				return false;
+			}
+			Key other = (Key)obj;
+			return kind==other.kind && hash==other.hash && content.equals(other.content);
+		}
+	}
+}
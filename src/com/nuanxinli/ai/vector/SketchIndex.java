@@ -0,0 +1,283 @@
+package com.nuanxinli.ai.vector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 基于随机投影草图的两阶段向量检索
+ * 第一阶段在草图上用稠密点积近似地挑出若干候选向量(余弦检索时与cosineSimilarity一样除以长度的平方), 第二阶段只对这些候选用原向量的cosineSimilarity或dotProduct精确重排
+ * 候选数越大, 结果越接近精确检索, 速度也越慢
+ * two-stage search on random projection sketches.
+ * the first stage picks candidates by approximate dense dot products on sketches(divided by squares of lengths for cosine search, as cosineSimilarity does),
+ * the second stage re-ranks only these candidates exactly by cosineSimilarity or dotProduct of original vectors.
+ * more candidates gives results closer to exact search, but slower.
+ * 非线程安全 - not thread safe
+ * @author 宋辉(Song Hui)
+ *
+ */
+public class SketchIndex {
+
+	//投影 - the projection
+	private final RandomProjection projection;
+	//原始向量 - original vectors
+	private final List<SparseVector> vectors = new ArrayList<>();
+	//与vectors一一对应的草图 - sketches, one for each vector
+	private float[][] sketches = new float[16][];
+	//与vectors一一对应的草图长度 - sketch norms, one for each vector
+	private float[] norms = new float[16];
+	//第一阶段重复使用的查询草图和得分数组, 查询时不再按索引大小分配内存
+	//query sketch and scores reused by the first stage, so a query allocates nothing proportional to the index size
+	private final float[] querySketch;
+	private float[] scoreBuffer = new float[16];
+
+	/**
+	 * 初始化索引
+	 * constructor with 1 parameter
+	 * @param projection 用于生成草图的投影 - the projection to build sketches
+	 */
+	public SketchIndex(RandomProjection projection)
+	{
+		this.projection = projection;
+		this.querySketch = new float[projection.width()];
+	}
+
+	/**
+	 * 用一组向量初始化索引, 向量在索引中的位置与在数组中的位置相同
+	 * 向量组中不能有null: 原有的cloest/maxDotProduction会跳过null, 但索引无法在保持位置一致的同时跳过它们
+	 * constructor with 2 parameters, positions in the index are the same as in the array.
+	 * null items are not allowed: the original cloest/maxDotProduction skip them, but the index cannot skip them and keep positions
+	 * @param projection 用于生成草图的投影 - the projection to build sketches
+	 * @param vectors 加入索引的向量组 - vectors to be indexed
+	 */
+	public SketchIndex(RandomProjection projection, SparseVector[] vectors)
+	{
+		this(projection);
+		for (int i=0; i<vectors.length; i++){
+			if (vectors[i]==null){
+				throw new IllegalArgumentException("第"+i+"个向量为null, 不能加入索引");
+			}
+			add(vectors[i]);
+		}
+	}
+
+	/**
+	 * 把向量加入索引
+	 * add a vector into the index
+	 * @param vector 向量, 不能为null - the vector, must not be null
+	 * @return 向量在索引中的位置 - position of the vector in the index
+	 */
+	public int add(SparseVector vector)
+	{
+		if (vector==null){
+			throw new IllegalArgumentException("不能把null向量加入索引");
+		}
+		float[] sketch = projection.project(vector);
+		int index = vectors.size();
+		if (index==norms.length){
+			norms = Arrays.copyOf(norms, index*2);
+			sketches = Arrays.copyOf(sketches, index*2);
+			scoreBuffer = new float[index*2];
+		}
+		norms[index] = RandomProjection.norm(sketch);
+		sketches[index] = sketch;
+		vectors.add(vector);
+		return index;
+	}
+
+	/**
+	 * 获取索引中指定位置的向量
+	 * get the vector at specified position
+	 * @param index 位置 - the position
+	 * @return 向量 - the vector
+	 */
+	public SparseVector get(int index)
+	{
+		return vectors.get(index);
+	}
+
+	/**
+	 * 索引中的向量个数
+	 * count of vectors in the index
+	 */
+	public int size()
+	{
+		return vectors.size();
+	}
+
+	/**
+	 * 第一阶段: 按草图上与cosineSimilarity同口径的相似性(cosine为true)或草图点积, 挑出得分最高的若干候选
+	 * first stage: pick top candidates by a sketch similarity of the same measure as cosineSimilarity(when cosine is true) or by sketch dot product
+	 * @param query 查询向量 - the query vector
+	 * @param count 候选个数 - count of candidates
+	 * @param cosine 是否按余弦相似性 - whether by cosine similarity
+	 * @return 候选向量的位置, 按近似得分从高到低排列 - positions of candidates, descending by approximate score
+	 */
+	public int[] candidates(SparseVector query, int count, boolean cosine)
+	{
+		projection.projectInto(query, querySketch);
+		int size = vectors.size();
+		float[] scores = scoreBuffer;
+		Kernels.dotBatch(querySketch, sketches, size, scores);
+		if (cosine){
+			//与cosineSimilarity口径一致, 点积除以长度的平方(而不是长度), 否则两个阶段对长度不同的向量排序不同;
+			//查询向量的长度平方对所有候选都相同, 不影响排序, 所以省略
+			//same measure as cosineSimilarity, the dot product divided by squares of lengths(not lengths), or the two stages rank vectors of different lengths differently;
+			//the square of length of the query is the same for all candidates and does not change the order, so it is left out
+			for (int i=0; i<size; i++){
+				double normSquare = (double)norms[i] * norms[i];
+				scores[i] = normSquare==0 ? 0 : (float)(scores[i] / normSquare);
+			}
+		}
+		return topIndexes(i->scores[i], size, Math.min(count, size));
+	}
+
+	/**
+	 * 两阶段检索与查询向量夹角最小的向量, 相当于近似的SparseVector.cloest
+	 * two-stage search for the vector with minimal intersection angle, an approximate SparseVector.cloest
+	 * @param query 查询向量 - the query vector
+	 * @param candidateCount 第一阶段的候选个数 - count of candidates in first stage
+	 * @return 向量在索引中的位置, 索引为空时返回-1 - position of the vector, -1 if the index is empty
+	 */
+	public int cloest(SparseVector query, int candidateCount)
+	{
+		int[] top = topCloest(query, 1, candidateCount);
+		return top.length==0 ? -1 : top[0];
+	}
+
+	/**
+	 * 两阶段检索与查询向量点积最大的向量, 相当于近似的SparseVector.maxDotProduction
+	 * two-stage search for the vector with maximal dot product, an approximate SparseVector.maxDotProduction
+	 * @param query 查询向量 - the query vector
+	 * @param candidateCount 第一阶段的候选个数 - count of candidates in first stage
+	 * @return 向量在索引中的位置, 索引为空时返回-1 - position of the vector, -1 if the index is empty
+	 */
+	public int maxDotProduction(SparseVector query, int candidateCount)
+	{
+		int[] top = topDotProduction(query, 1, candidateCount);
+		return top.length==0 ? -1 : top[0];
+	}
+
+	/**
+	 * 两阶段检索余弦相似性最高的k个向量
+	 * two-stage search for top k vectors by cosine similarity
+	 * @param query 查询向量 - the query vector
+	 * @param k 返回的向量个数 - count of results
+	 * @param candidateCount 第一阶段的候选个数(小于k时按k处理) - count of candidates in first stage(k if less than k)
+	 * @return 向量在索引中的位置, 按精确得分从高到低排列 - positions of vectors, descending by exact score
+	 */
+	public int[] topCloest(SparseVector query, int k, int candidateCount)
+	{
+		return search(query, k, candidateCount, true);
+	}
+
+	/**
+	 * 两阶段检索点积最大的k个向量
+	 * two-stage search for top k vectors by dot product
+	 * @param query 查询向量 - the query vector
+	 * @param k 返回的向量个数 - count of results
+	 * @param candidateCount 第一阶段的候选个数(小于k时按k处理) - count of candidates in first stage(k if less than k)
+	 * @return 向量在索引中的位置, 按精确得分从高到低排列 - positions of vectors, descending by exact score
+	 */
+	public int[] topDotProduction(SparseVector query, int k, int candidateCount)
+	{
+		return search(query, k, candidateCount, false);
+	}
+
+	private int[] search(SparseVector query, int k, int candidateCount, boolean cosine)
+	{
+		int[] candidates = candidates(query, Math.max(k, candidateCount), cosine);
+		double[] exactScores = new double[candidates.length];
+		for (int i=0; i<candidates.length; i++){
+			SparseVector vector = vectors.get(candidates[i]);
+			exactScores[i] = cosine ? query.cosineSimilarity(vector) : query.dotProduct(vector);
+		}
+		int[] order = topIndexes(i->exactScores[i], exactScores.length, Math.min(k, candidates.length));
+		int[] result = new int[order.length];
+		for (int i=0; i<order.length; i++){
+			result[i] = candidates[order[i]];
+		}
+		return result;
+	}
+
+	//按下标读取得分, 使同一个堆既能用于草图的float得分, 也能用于精确的double得分
+	//scores read by index, so the same heap serves both float sketch scores and exact double scores
+	private interface Scores {
+		double get(int index);
+	}
+
+	//前length个得分中最高的count个元素的下标, 按得分从高到低排列
+	//indexes of top count scores among the first length ones, descending by score
+	private static int[] topIndexes(Scores scores, int length, int count)
+	{
+		if (count<=0){
+			return new int[0];
+		}
+		//用大小为count的小顶堆选出最大的count个元素 - select top count elements by a min-heap of size count
+		int[] heap = new int[count];
+		int heapSize = 0;
+		for (int i=0; i<length; i++){
+			if (heapSize<count){
+				heap[heapSize] = i;
+				siftUp(heap, heapSize++, scores);
+			}else if (scores.get(i)>scores.get(heap[0])){
+				heap[0] = i;
+				siftDown(heap, heapSize, scores);
+			}
+		}
+		//依次弹出堆顶, 从后往前填充, 得到降序结果 - pop the heap from back to front, to get descending order
+		int[] result = new int[heapSize];
+		for (int n=heapSize-1; n>=0; n--){
+			result[n] = heap[0];
+			heap[0] = heap[n];
+			siftDown(heap, n, scores);
+		}
+		return result;
+	}
+
+	private static void siftUp(int[] heap, int position, Scores scores)
+	{
+		int item = heap[position];
+		while (position>0){
+			int parent = (position-1) >>> 1;
+			if (!less(item, heap[parent], scores)){
+				break;
+			}
+			heap[position] = heap[parent];
+			position = parent;
+		}
+		heap[position] = item;
+	}
+
+	private static void siftDown(int[] heap, int size, Scores scores)
+	{
+		if (size==0){
+			return;
+		}
+		int item = heap[0];
+		int position = 0;
+		int half = size >>> 1;
+		while (position<half){
+			int child = 2*position + 1;
+			int right = child + 1;
+			if (right<size && less(heap[right], heap[child], scores)){
+				child = right;
+			}
+			if (!less(heap[child], item, scores)){
+				break;
+			}
+			heap[position] = heap[child];
+			position = child;
+		}
+		heap[position] = item;
+	}
+
+	//堆中的比较: 得分小的在前, 得分相同时下标大的在前, 这样最终结果中得分相同的以下标小的优先(与maxIndex一致)
+	//ordering in heap: lower score first, and larger index first for equal scores, so that smaller index wins ties(same as maxIndex)
+	private static boolean less(int a, int b, Scores scores)
+	{
+		double scoreA = scores.get(a);
+		double scoreB = scores.get(b);
+		return scoreA<scoreB || (scoreA==scoreB && a>b);
+	}
+}
@@ -3,6 +3,7 @@ package com.nuanxinli.ai.vector;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -27,15 +28,19 @@ public class SparseVector {
 		double calculate(Double divValue1, Double divValue2);
 	}
 	
-	//用一个map来保存向量各个维度的值(仅不为0的维度才保存)
-	//a map to store values for all divisions, only none-zero value will be stored
-	private Map<String, Double> divMap = new HashMap<>();
+	//用一个map来保存向量各个维度的值(仅不为0的维度才保存), 第一次写入时才创建, 自行管理维度存储的子类(如ArenaVector)不会创建它
+	//a map to store values for all divisions, only none-zero value will be stored;
+	//created on first write, so subclasses managing division storage by themselves(e.g. ArenaVector) never create it
+	private Map<String, Double> divMap;
 	//长度的平方(这是一个缓存, 由计算方法squareOfLength生成,一旦生成就记录下来,以后不再计算了, 除非向量改变)
 	//the square of length on this vector, which is a cache value 
 	private Double lengthSquareCache;
 	//所有维度值之和(这是一个缓存, 由计算方法sum生成,一旦生成就记录下来,以后不再计算了, 除非向量改变)
 	//the sum on values of all divisions 
 	private Double sumCache;
+	//修改计数器, 每次维度发生变化都会加1, 用于让外部缓存(如SimilarityCache)判断向量是否已经改变
+	//modification counter, increased on every division change, so that external caches (e.g. SimilarityCache) can detect changes
+	private int modCount;
 
 	//日志记录
 	//for logging
@@ -49,6 +54,7 @@ public class SparseVector {
 	 */
 	public SparseVector(String[] divNames, double[] divValues)
 	{
+		divMap = new HashMap<>();
 		for (int i=0; i<divNames.length; i++){
 			String text= divNames[i];
 			double value = divValues[i];
@@ -65,6 +71,7 @@ public class SparseVector {
 	 */
 	public SparseVector(String[] divNames)
 	{
+		divMap = new HashMap<>();
 		for (String text : divNames){
 			divMap.put(text, 1d);
 		}
@@ -87,7 +94,8 @@ public class SparseVector {
 	 */
 	public void setDiv(String divName, double divValue)
 	{
-		divMap.put(divName, divValue);
+		writableMap().put(divName, divValue);
+		modCount++;
 		if (lengthSquareCache!=null){
 			squareOfLength(true);
 		}
@@ -101,7 +109,16 @@ public class SparseVector {
 	 */
 	public Double getDivValue(String divName)
 	{
-		return divMap.get(divName);
+		return divMap==null ? null : divMap.get(divName);
+	}
+	
+	//维度值, 不存在时为0; 自行存储维度的子类(如ScratchVector、ArenaVector)覆盖它, 直接返回基本类型, 使点积计算不产生装箱对象
+	//value of a division, 0 if missing; subclasses with their own storage(e.g. ScratchVector, ArenaVector) override it to return the primitive directly,
+	//so dot products box nothing
+	double valueOrZero(String divName)
+	{
+		Double divValue = getDivValue(divName);
+		return divValue==null ? 0 : divValue;
 	}
 	
 	/**
@@ -112,12 +129,14 @@ public class SparseVector {
 	 */
 	public void addDiv(String divName, double addValue)
 	{
-		Double oldValue = divMap.get(divName);
+		Map<String, Double> map = writableMap();
+		Double oldValue = map.get(divName);
 		if (oldValue==null){
-			divMap.put(divName, addValue);
+			map.put(divName, addValue);
 		}else{
-			divMap.put(divName, oldValue + addValue);
+			map.put(divName, oldValue + addValue);
 		}
+		modCount++;
 		if (lengthSquareCache!=null){
 			squareOfLength(true);
 		}
@@ -178,7 +197,7 @@ public class SparseVector {
 	public SparseVector multiply(double factor)
 	{
 		SparseVector product = new SparseVector();
-		for (Map.Entry<String,Double> entry : divMap.entrySet()){
+		for (Map.Entry<String,Double> entry : getEntries()){
 			product.setDiv(entry.getKey(), entry.getValue()*factor);
 		}
 		return product;
@@ -191,7 +210,7 @@ public class SparseVector {
 	 */
 	public void multiplySelf(double factor)
 	{
-		for (Map.Entry<String,Double> entry : divMap.entrySet()){
+		for (Map.Entry<String,Double> entry : getEntries()){
 			this.setDiv(entry.getKey(), entry.getValue()*factor);
 		}
 	}
@@ -205,7 +224,7 @@ public class SparseVector {
 	public SparseVector divide(double divisor)
 	{
 		SparseVector quotient = new SparseVector();
-		for (Map.Entry<String,Double> entry : divMap.entrySet()){
+		for (Map.Entry<String,Double> entry : getEntries()){
 			quotient.setDiv(entry.getKey(), entry.getValue()/divisor);
 		}
 		return quotient;
@@ -218,7 +237,7 @@ public class SparseVector {
 	 */
 	public void divideSelf(double divisor)
 	{
-		for (Map.Entry<String,Double> entry : divMap.entrySet()){
+		for (Map.Entry<String,Double> entry : getEntries()){
 			this.setDiv(entry.getKey(), entry.getValue()/divisor);
 		}
 	}
@@ -294,7 +313,7 @@ public class SparseVector {
 	 * @param calculateFunc 合并算法，用于表达两个具体的向量维度合并时应该怎样计算 - merging method, which is a call back function to handle values from 2 vectors
 	 */
 	public void mergeVectorSelf(SparseVector vector, DualValueComputer calculateFunc){
-		for (Map.Entry<String,Double> entry : vector.divMap.entrySet()){
+		for (Map.Entry<String,Double> entry : vector.getEntries()){
 			String divName = entry.getKey();
 			Double divValue = entry.getValue();
 			Double originValue = this.getDivValue(divName);
@@ -319,12 +338,17 @@ public class SparseVector {
 	//计算一下每一个维度值占总值的比例，删除低于给定minRatio值的维度
 	private void cleanSmallDiv(Double minRatio) {
 		double totalValue = this.sum(true);
-		for ( Entry<String, Double> entry:divMap.entrySet()){
+		//先找出要删除的维度再删除, 不在遍历中修改 - collect divisions first, not to modify while iterating
+		List<String> smallDivs = new ArrayList<>();
+		for ( Entry<String, Double> entry:getEntries()){
 			Double value = entry.getValue();
 			if (value/totalValue < minRatio){
-				divMap.remove(entry.getKey());
+				smallDivs.add(entry.getKey());
 			}
 		}
+		for (String divName : smallDivs){
+			removeDiv(divName);
+		}
 	}
 	
 	/**
@@ -378,9 +402,14 @@ public class SparseVector {
 		if (vector==null){
 			return 0;
 		}
+		//另一个向量能更高效地遍历自身维度时(如堆外向量), 由它来计算
+		//let the other vector drive the calculation when it iterates its divisions more efficiently(e.g. off-heap vectors)
+		if (vector.drivesDotProduct() && !this.drivesDotProduct()){
+			return vector.dotProduct(this);
+		}
 		
 		double product = 0;
-		for (Map.Entry<String,Double> entry : divMap.entrySet()){
+		for (Map.Entry<String,Double> entry : getEntries()){
 			String divName = entry.getKey();
 			Double divValue = entry.getValue();
 			Double divValue2 = vector.getDivValue(divName);
@@ -401,8 +430,25 @@ public class SparseVector {
 		if (vector==null){
 			return this.squareOfLength(false);
 		}
-		SparseVector newVector = minus(vector);
-		return newVector.squareOfLength(false);
+		if (vector.drivesDotProduct() && !this.drivesDotProduct()){
+			return vector.squareOfDistance(this);
+		}
+		//直接累加各维度差的平方: 先遍历本向量的维度, 再加上另一个向量中本向量没有的维度, 不构造差向量
+		//不用|a|²+|b|²-2a·b, 因为坐标很大而差很小时, 相减会抵消掉全部有效数字
+		//sum squared differences directly: divisions of this vector first, then divisions of the other one missing here, without building the difference vector.
+		//|a|²+|b|²-2a·b is not used, since the subtraction cancels all significant digits when coordinates are large and differences small
+		double square = 0;
+		for (Map.Entry<String,Double> entry : getEntries()){
+			Double divValue2 = vector.getDivValue(entry.getKey());
+			double difference = entry.getValue() - (divValue2==null ? 0 : divValue2);
+			square += difference*difference;
+		}
+		for (Map.Entry<String,Double> entry : vector.getEntries()){
+			if (this.getDivValue(entry.getKey())==null){
+				square += entry.getValue()*entry.getValue();
+			}
+		}
+		return square;
 	}
 	
 	/**
@@ -416,8 +462,7 @@ public class SparseVector {
 		if (vector==null){
 			return this.length(false);
 		}
-		SparseVector newVector = minus(vector);
-		return newVector.length(false);
+		return Math.sqrt(squareOfDistance(vector));
 	}
 	
 	/**
@@ -437,8 +482,10 @@ public class SparseVector {
 		}
 		
 		double sum=0;
-		for (double value:divMap.values()){
-			sum += value;
+		if (divMap!=null){
+			for (double value:divMap.values()){
+				sum += value;
+			}
 		}
 		sumCache = sum;
 		return sum;
@@ -461,8 +508,10 @@ public class SparseVector {
 		}
 		
 		double sum=0;
-		for (double value:divMap.values()){
-			sum += value*value;
+		if (divMap!=null){
+			for (double value:divMap.values()){
+				sum += value*value;
+			}
 		}
 		lengthSquareCache = sum;
 		return sum;
@@ -533,15 +582,15 @@ public class SparseVector {
 		if (vector==null){
 			return 0;
 		}
-		int unionCount = divMap.size()+vector.divMap.size();
+		int unionCount = divCount()+vector.divCount();
 		if (unionCount==0){
 			return 0;
 		}
 		
 		int intersectCount = 0;
-		for (Map.Entry<String,Double> entry : divMap.entrySet()){
+		for (Map.Entry<String,Double> entry : getEntries()){
 			String divName = entry.getKey();
-			if (vector.divMap.containsKey(divName)){
+			if (vector.getDivValue(divName)!=null){
 				intersectCount++;
 			}
 		}
@@ -580,7 +629,7 @@ public class SparseVector {
 
 	//数组中最大值的索引
 	//the index of maximum value in the array
-	private int maxIndex(double[] array){
+	static int maxIndex(double[] array){
 		double maxValue = array[0];
 		int index = 0;
 		for (int i=1; i<array.length;i++){
@@ -601,16 +650,19 @@ public class SparseVector {
 	 * @return 最靠近向量(点)的索引 (在vectors中的index) - the index of minimal one 
 	 */
 	public int cloest(SparseVector[] vectors) {
-		double[] similarities = new double[vectors.length];
-		
-		for (int i=0; i<vectors.length;i++){
+		//边计算边比较, 不分配临时数组; null向量的得分按0参与比较 - compare while calculating without a temp array, null vectors score 0
+		SparseVector first = vectors[0];
+		double maxValue = (first==null) ? 0 : cosineSimilarity(first);
+		int index = 0;
+		for (int i=1; i<vectors.length;i++){
 			SparseVector vector = vectors[i];
-			if (vector==null){
-				continue;
+			double current = (vector==null) ? 0 : cosineSimilarity(vector);
+			if (current>maxValue){
+				maxValue = current;
+				index = i;
 			}
-			similarities[i] = cosineSimilarity(vector);
 		}
-		return maxIndex(similarities);
+		return index;
 	}
 	
 	/**
@@ -621,16 +673,19 @@ public class SparseVector {
 	 * @return 最大点积(点)的索引 (在vectors中的index) - the index of maximal one 
 	 */
 	public int maxDotProduction(SparseVector[] vectors) {
-		double[] productions = new double[vectors.length];
-		
-		for (int i=0; i<vectors.length;i++){
+		//边计算边比较, 不分配临时数组; null向量的得分按0参与比较 - compare while calculating without a temp array, null vectors score 0
+		SparseVector first = vectors[0];
+		double maxValue = (first==null) ? 0 : dotProduct(first);
+		int index = 0;
+		for (int i=1; i<vectors.length;i++){
 			SparseVector vector = vectors[i];
-			if (vector==null){
-				continue;
+			double current = (vector==null) ? 0 : dotProduct(vector);
+			if (current>maxValue){
+				maxValue = current;
+				index = i;
 			}
-			productions[i] = dotProduct(vector);
 		}
-		return maxIndex(productions);
+		return index;
 	}
 	
 	/**
@@ -639,7 +694,7 @@ public class SparseVector {
 	 */
 	public String toString()
 	{
-		return divMap.entrySet().toString();
+		return getEntries().toString();
 	}
 	
 	/**
@@ -651,7 +706,7 @@ public class SparseVector {
 	public Entry<String,Double>[] topDivisions(int x)
 	{
 		@SuppressWarnings("unchecked")
-		Entry<String,Double>[] set = divMap.entrySet().stream().sorted((Entry<String,Double> w1, Entry<String,Double> w2)->Double.compare(w2.getValue(),w1.getValue())).toArray(Entry[]::new);
+		Entry<String,Double>[] set = getEntries().stream().sorted((Entry<String,Double> w1, Entry<String,Double> w2)->Double.compare(w2.getValue(),w1.getValue())).toArray(Entry[]::new);
 		if (x>=0 && x<set.length){
 			return Arrays.copyOfRange(set,0, x);
 		}else {
@@ -735,6 +790,79 @@ public class SparseVector {
 		}
 		return clusteredVectors;
 	}
+
+	/**
+	 * 把一组向量，按照给定的几个中心向量分类
+	 * 这是一个重载方法,增加了checkpointer参数, 相当于第0轮迭代, 见下面带iteration参数的方法
+	 * giving a set of vectors, split them into several groups surrounding given centers, with checkpoints, as iteration 0.
+	 * see the overload with an iteration parameter
+	 * @param vectors 待分类的向量组
+	 * a set of vectors
+	 * @param centers 给定的向量中心
+	 * the centers for grouping
+	 * @param ruleFunc 需要传入一个双参数的方法，第一个参数是独立的vector，第二个参数是一组vector，返回一组vectors中，与独立vector关系最近的那条向量的索引
+	 * should be a function with 2 arguments, the first is a vector, the second is an array of vectors, and returns the index of closest one in array
+	 * @param checkpointer 检查点 - the checkpointer
+	 * @return 分好类的向量组，外围List对应centers（分类中心的个数)
+	 * groups in outer list, and items in one group in inner list
+	 */
+	public static List<List<SparseVector>> aggregate(SparseVector[] vectors, SparseVector[] centers, BiFunction<SparseVector, SparseVector[],Integer> ruleFunc, Checkpointer checkpointer) {
+		return aggregate(vectors, centers, ruleFunc, checkpointer, 0);
+	}
+
+	/**
+	 * 把一组向量，按照给定的几个中心向量分类, 用于多轮迭代的聚类(每一轮用上一轮的结果重新计算中心, 如getCentroid)
+	 * 运行中定期保存检查点(包括本轮的中心和迭代次数); 如果启动时已有同一任务(向量、中心、迭代次数都相同)未完成的检查点, 就跳过已经分配过的向量继续执行,
+	 * 否则从头开始, 所以新一轮迭代换了中心后不会误用上一轮的结果. 完成后检查点被标记为已完成, 不会再被续用
+	 * JVM重启后继续聚类: 用Checkpointer.restore()读出中断时的centers和iteration, 再用它们调用本方法
+	 * giving a set of vectors, split them into several groups surrounding given centers, for clustering in multiple rounds
+	 * (each round recomputes centers from the result of the last one, e.g. by getCentroid).
+	 * checkpoints(including centers and iteration of this round) are saved periodically; an unfinished checkpoint of the same job
+	 * (same vectors, centers and iteration) is resumed by skipping vectors already assigned, otherwise the round starts over,
+	 * so a new round with new centers never reuses results of the last one. the checkpoint is marked complete when done, and is never resumed again.
+	 * to continue clustering after a JVM restart, read centers and iteration with Checkpointer.restore(), and call this method with them
+	 * @param vectors 待分类的向量组 - a set of vectors
+	 * @param centers 给定的向量中心 - the centers for grouping
+	 * @param ruleFunc 与上面的方法相同 - same as the method above
+	 * @param checkpointer 检查点 - the checkpointer
+	 * @param iteration 当前是第几轮迭代 - the current iteration
+	 * @return 分好类的向量组，外围List对应centers（分类中心的个数)
+	 * groups in outer list, and items in one group in inner list
+	 */
+	public static List<List<SparseVector>> aggregate(SparseVector[] vectors, SparseVector[] centers, BiFunction<SparseVector, SparseVector[],Integer> ruleFunc, Checkpointer checkpointer, int iteration) {
+
+		int size = vectors.length;
+		Checkpointer.State state = checkpointer.resume(vectors, centers, iteration);
+		state.centers = centers;
+		int[] assignments = state.assignments;
+
+		for (int i=state.lastProcessed+1; i<size;i++){
+			assignments[i] = ruleFunc.apply(vectors[i],centers);
+			logger.info("为第"+(i)+"行向量分配所属聚类:"+assignments[i]);
+			state.lastProcessed = i;
+			if (checkpointer.due(i)){
+				checkpointer.save(state);
+			}
+		}
+		state.complete = true;
+		checkpointer.save(state);
+
+		int count = centers.length;
+		List<List<SparseVector>> clusteredVectors = new ArrayList<List<SparseVector>>(count);
+		for (int k=0; k<count; k++){
+			clusteredVectors.add(null);
+		}
+		for (int i=0; i<size;i++){
+			int nearestIndex = assignments[i];
+			List<SparseVector> oneClusteredVectors  = clusteredVectors.get(nearestIndex);
+			if (oneClusteredVectors==null){
+				oneClusteredVectors= new ArrayList<SparseVector>();
+				clusteredVectors.set(nearestIndex, oneClusteredVectors);
+			}
+			oneClusteredVectors.add(vectors[i]);
+		}
+		return clusteredVectors;
+	}
 	
 	/**
 	 * 返回一个规范化后的新向量(方向不变, 长度变为1)
@@ -751,7 +879,24 @@ public class SparseVector {
 	
 	public Set<Entry<String, Double>> getEntries()
 	{
-		return divMap.entrySet();
+		return divMap==null ? Collections.<Entry<String, Double>>emptySet() : divMap.entrySet();
+	}
+	
+	/**
+	 * 不为0的维度个数
+	 * count of none-zero divisions
+	 * @return 维度个数 - count of divisions
+	 */
+	public int divCount()
+	{
+		return divMap==null ? 0 : divMap.size();
+	}
+	
+	//是否应由本向量来驱动点积计算(遍历自身维度, 到另一个向量中查值), 缺省为否
+	//whether this vector should drive dot product calculation(iterate its own divisions and look up the other vector), false by default
+	boolean drivesDotProduct()
+	{
+		return false;
 	}
 	
 	/**
@@ -761,6 +906,40 @@ public class SparseVector {
 	 * @return 删除的维度对应的值,如果没有这个维度,则返回null
 	 */
 	public Double removeDiv(String divName){
-		return divMap.remove(divName);
+		modCount++;
+		Double removed = (divMap==null) ? null : divMap.remove(divName);
+		if (removed!=null && lengthSquareCache!=null){
+			squareOfLength(true);
+		}
+		return removed;
+	}
+	
+	//写入维度时使用的map, 第一次写入时创建 - the map for writing divisions, created on first write
+	private Map<String, Double> writableMap()
+	{
+		if (divMap==null){
+			divMap = new HashMap<>();
+		}
+		return divMap;
+	}
+	
+	//记录一次修改, 供自行管理维度存储的子类使用 - record a modification, for subclasses managing division storage by themselves
+	void modified()
+	{
+		modCount++;
+	}
+	
+	//修改计数器的当前值
+	//current value of the modification counter
+	int modCount()
+	{
+		return modCount;
+	}
+	
+	//以Map形式返回各维度的值,仅供本包内的缓存等组件比较向量内容使用,调用者不应修改它
+	//divisions as a map, for comparing vector contents inside this package only, callers must not modify it
+	Map<String, Double> asMap()
+	{
+		return divMap==null ? Collections.<String, Double>emptyMap() : divMap;
 	}
 }
@@ -37,6 +37,15 @@ public class TagIdVector extends SparseVector {
 		this.id = id;
 	}
 
+	/**
+	 * 只用id初始化向量, 供自行管理维度存储的子类(如ArenaVector)使用
+	 * constructor with id only, for subclasses which manage division storage by themselves(e.g. ArenaVector)
+	 * @param id
+	 */
+	TagIdVector(Long id) {
+		this.id = id;
+	}
+
 	/**
 	 * 把一组向量，按照所属中心向量打标签。该向量标签的内容，将等于所属中心的标签
 	 * 这里判定一个向量属于哪个中心的依据是：与那个中心的点积最大（相同维度多，而且相同维度中的数值也大）
@@ -50,19 +59,130 @@ public class TagIdVector extends SparseVector {
 	 */
 	public static void tag(TagIdVector[] vectors, TagIdVector[] centers, Double invalidValue) {
 		
+		Tagger tagger = new Tagger(vectors, centers, invalidValue);
 		for (int i=0; i<vectors.length;i++){
 			TagIdVector vector = vectors[i];
-			int index = vector.maxDotProduction(centers);
-			if (invalidValue!=null){
-				double production = vector.dotProduct(centers[index]);
-				if (production<invalidValue){
-					logger.debug("向量和最近的中心点积为"+production+"，太小放弃，选用缺省值。"+vector);
-					index = 0;	//以第一个中心作为缺省值
-				}
+			int index = tagger.tagIndex(vector);
+			vector.tag = centers[index].tag;
+			logger.info("为第"+(i)+"个向量打标签:"+index);
+		}
+	}
+
+	/**
+	 * 按照与TagIdVector.tag相同的规则, 给本向量打标签
+	 * tag this vector by centers, with the same rule as TagIdVector.tag
+	 * @param centers 给定的中心向量 - centers for tagging
+	 * @param invalidValue 无效值, 含义与TagIdVector.tag相同 - invalid value, same as in TagIdVector.tag
+	 * @return 本向量与所选中心的点积 - dot product of this vector and the chosen center
+	 */
+	public double tagBy(TagIdVector[] centers, Double invalidValue) {
+		int index = tagIndex(this, centers, invalidValue);
+		TagIdVector center = centers[index];
+		this.tag = center.tag;
+		return center==null ? 0 : dotProduct(center);
+	}
+
+	//向量应该使用哪个中心的标签; 每个中心只计算一次点积(规则与maxDotProduction相同, null中心按0计)
+	//index of the center whose tag the vector should take; each center is scored once(same rule as maxDotProduction, null centers score 0)
+	static int tagIndex(TagIdVector vector, TagIdVector[] centers, Double invalidValue) {
+		double first = (centers[0]==null) ? 0 : vector.dotProduct(centers[0]);
+		double production = first;
+		int index = 0;
+		for (int i=1; i<centers.length; i++){
+			double current = (centers[i]==null) ? 0 : vector.dotProduct(centers[i]);
+			if (current>production){
+				production = current;
+				index = i;
+			}
+		}
+		if (invalidValue!=null && production<invalidValue){
+			//先判断日志级别, 避免在不输出时拼接字符串 - check the level first, so no string is built when nothing is logged
+			if (logger.isDebugEnabled()){
+				logger.debug("向量和最近的中心点积为"+production+"，太小放弃，选用缺省值。"+vector);
+			}
+			index = 0;	//以第一个中心作为缺省值
+		}
+		return index;
+	}
+
+	//从一组得分中选出中心, 规则与上面的tagIndex相同 - choose a center from scores, with the same rule as tagIndex above
+	static int tagIndex(double[] scores, Double invalidValue) {
+		double production = scores[0];
+		int index = 0;
+		for (int i=1; i<scores.length; i++){
+			if (scores[i]>production){
+				production = scores[i];
+				index = i;
 			}
+		}
+		if (invalidValue!=null && production<invalidValue){
+			index = 0;	//以第一个中心作为缺省值
+		}
+		return index;
+	}
+
+	//一次打标签任务中选择中心的方法: 所有向量都是同一存储区的句柄时, 把中心展开成稠密数组, 用Kernels.gatherDot计算点积; 否则逐个调用点积
+	//how a tagging job chooses centers: when all vectors are handles of one arena, centers are expanded into dense arrays and scored by Kernels.gatherDot;
+	//otherwise dot products are called one by one
+	private static final class Tagger {
+		private final TagIdVector[] centers;
+		private final Double invalidValue;
+		private final DenseCenters dense;
+		private final double[] scores;
+
+		Tagger(TagIdVector[] vectors, TagIdVector[] centers, Double invalidValue) {
+			this.centers = centers;
+			this.invalidValue = invalidValue;
+			this.dense = DenseCenters.of(vectors, centers);
+			this.scores = (dense==null) ? null : new double[centers.length];
+		}
+
+		int tagIndex(TagIdVector vector) {
+			if (dense==null){
+				return TagIdVector.tagIndex(vector, centers, invalidValue);
+			}
+			dense.dotProducts((ArenaVector)vector, scores);
+			return TagIdVector.tagIndex(scores, invalidValue);
+		}
+	}
+
+	/**
+	 * 把一组向量，按照所属中心向量打标签
+	 * 这是一个重载方法,增加了checkpointer参数: 运行中定期保存每个向量所属中心的索引, 如果启动时已有同一任务(向量和中心都相同)未完成的检查点,
+	 * 已处理过的向量直接按检查点恢复标签, 从下一个向量继续执行; 否则从头开始 (中心只以哈希记录在检查点中, 恢复时必须传入相同的centers)
+	 * giving a set of vectors, tag each one by centers, saving checkpoints periodically.
+	 * when an unfinished checkpoint of the same job(same vectors and centers) exists, vectors already processed get their tags restored from it,
+	 * and tagging continues from the next one; otherwise it starts over
+	 * (centers are only recorded as a hash in the checkpoint, the same centers must be passed when resuming)
+	 * @param vectors 需要打标签的一组向量 - a set of vectors
+	 * @param centers 给定的中心向量 - centers for tagging
+	 * @param invalidValue 无效值，当一个向量和所有中心的点积都不超过这个值的时候，就不再依据这个结果，而是简单把改向量标注为属于第一个中心
+	 * - when dot products of the vector and all centers are less than this value, tag it with first center's tag(as the default tag)
+	 * @param checkpointer 检查点 - the checkpointer
+	 */
+	public static void tag(TagIdVector[] vectors, TagIdVector[] centers, Double invalidValue, Checkpointer checkpointer) {
+
+		Checkpointer.State state = checkpointer.resume(vectors, centers, 0);
+		state.centers = null;
+		int[] assignments = state.assignments;
+		for (int i=0; i<=state.lastProcessed; i++){
+			vectors[i].tag = centers[assignments[i]].tag;
+		}
+
+		Tagger tagger = new Tagger(vectors, centers, invalidValue);
+		for (int i=state.lastProcessed+1; i<vectors.length;i++){
+			TagIdVector vector = vectors[i];
+			int index = tagger.tagIndex(vector);
 			vector.tag = centers[index].tag;
+			assignments[i] = index;
 			logger.info("为第"+(i)+"个向量打标签:"+index);
+			state.lastProcessed = i;
+			if (checkpointer.due(i)){
+				checkpointer.save(state);
+			}
 		}
+		state.complete = true;
+		checkpointer.save(state);
 	}
 	
 	/**
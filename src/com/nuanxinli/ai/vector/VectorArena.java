@@ -0,0 +1,330 @@
+package com.nuanxinli.ai.vector;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * 堆外向量存储区
+ * 把大量向量的维度下标和维度值保存在堆外的直接内存(DirectByteBuffer)中, 按块(slab)分配, 只在堆上保留很小的ArenaVector句柄,
+ * 以避免数百万个HashMap带来的老年代膨胀和长时间GC停顿
+ * 维度名称统一编号保存在存储区的字典中, 每个向量的维度按编号升序存放, 两个同一存储区的向量可以直接归并求点积
+ * an off-heap vector arena.
+ * division indexes and values of huge amount of vectors are stored in direct ByteBuffers, allocated in slabs,
+ * only small ArenaVector handles stay on heap, to avoid the old-gen growth and long GC pauses from millions of HashMaps.
+ * division names are numbered in a dictionary of the arena, and divisions of each vector are stored in ascending order,
+ * so dot products between vectors of the same arena are computed by merging directly.
+ *
+ * 生命周期: clear()使所有句柄失效并重复使用已分配的块; close()使所有句柄失效并释放所有块(直接内存在块对象被GC回收时归还)
+ * lifecycle: clear() invalidates all handles and reuses allocated slabs; close() invalidates all handles and drops all slabs
+ * (direct memory is returned when the slab objects are garbage collected)
+ * 分配方法是同步的; 句柄只读, 可以在多个线程中同时使用 - allocation is synchronized; handles are read-only and can be used by multiple threads
+ * 但clear()和close()时不能有其他线程正在读取句柄: 句柄只在读取之前检查代数, clear()之后新分配的向量会覆盖块中的数据,
+ * 已经通过检查的读取可能读到新数据. 调用方必须先等待所有读取结束(例如线程池执行完毕)再清空
+ * but no thread may be reading handles during clear() or close(): a handle checks the generation only before reading, and vectors allocated after clear()
+ * overwrite slab data, so a read that already passed the check may see new data. Callers must wait for all reads to finish(e.g. the thread pool is done) before clearing.
+ * @author 宋辉(Song Hui)
+ *
+ */
+public class VectorArena implements Closeable {
+
+	//缺省每块可容纳的维度个数 - default count of divisions per slab
+	public static final int DEFAULT_SLAB_ENTRIES = 1 << 18;
+
+	//一个块: 维度编号和维度值分别保存在两个直接内存缓冲区中
+	//a slab: division indexes and values are stored in two direct buffers
+	static final class Slab {
+		final IntBuffer indexes;
+		final DoubleBuffer values;
+		final int capacity;
+		int used;
+
+		Slab(int capacity)
+		{
+			this.capacity = capacity;
+			this.indexes = ByteBuffer.allocateDirect(capacity*Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+			this.values = ByteBuffer.allocateDirect(capacity*Double.BYTES).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+		}
+	}
+
+	//每块可容纳的维度个数 - count of divisions per slab
+	private final int slabEntries;
+	//已分配的块, 最后一个是当前正在使用的块 - allocated slabs, the last one is in use
+	private final List<Slab> slabs = new ArrayList<>();
+	//clear()之后可以重复使用的块 - slabs to be reused after clear()
+	private final List<Slab> freeSlabs = new ArrayList<>();
+	//维度名称到编号的字典 - dictionary from division name to index
+	private final Map<String, Integer> divIndexes = new ConcurrentHashMap<>();
+	//维度编号到名称的字典 - dictionary from division index to name
+	private volatile String[] divNames = new String[1024];
+	private int divNameCount;
+	//代数, 每次clear()或close()加1, 句柄的代数与之不同即失效 - generation, increased on clear() or close(), handles of other generations are invalid
+	private volatile int generation;
+	private volatile boolean closed;
+	private int vectorCount;
+
+	private static Logger logger = Logger.getLogger(VectorArena.class);
+
+	/**
+	 * 初始化存储区
+	 * constructor with no parameter
+	 */
+	public VectorArena()
+	{
+		this(DEFAULT_SLAB_ENTRIES);
+	}
+
+	/**
+	 * 初始化存储区
+	 * constructor with 1 parameter
+	 * @param slabEntries 每块可容纳的维度个数 - count of divisions per slab
+	 */
+	public VectorArena(int slabEntries)
+	{
+		if (slabEntries<=0){
+			throw new IllegalArgumentException("块大小必须大于0: "+slabEntries);
+		}
+		this.slabEntries = slabEntries;
+	}
+
+	/**
+	 * 把维度名称和维度值复制到堆外, 返回新的句柄
+	 * copy division names and values off heap, and return a new handle
+	 * @param id 向量id - id of the vector
+	 * @param divNames 维度名称 - division names
+	 * @param divValues 维度值 - division values
+	 * @return 句柄 - the handle
+	 */
+	public synchronized ArenaVector allocate(Long id, String[] divNames, double[] divValues)
+	{
+		checkOpen();
+		int length = divNames.length;
+		//按维度编号排序, 相同维度以后出现的值为准(与SparseVector构造方法一致) - sort by division index, the later value wins for duplicates(same as SparseVector)
+		long[] order = new long[length];
+		for (int i=0; i<length; i++){
+			order[i] = ((long)indexOf(divNames[i]) << 32) | i;
+		}
+		Arrays.sort(order);
+		int unique = 0;
+		for (int i=0; i<length; i++){
+			if (i+1<length && (order[i+1] >>> 32)==(order[i] >>> 32)){
+				continue;
+			}
+			order[unique++] = order[i];
+		}
+
+		Slab slab = slabFor(unique);
+		int offset = slab.used;
+		double[] values = new double[unique];
+		for (int i=0; i<unique; i++){
+			values[i] = divValues[(int)order[i]];
+			slab.indexes.put(offset+i, (int)(order[i] >>> 32));
+			slab.values.put(offset+i, values[i]);
+		}
+		slab.used += unique;
+		vectorCount++;
+		return new ArenaVector(this, generation, slab, offset, unique, id, Kernels.sum(values, unique), Kernels.sumOfSquares(values, unique));
+	}
+
+	/**
+	 * 把堆上的向量复制到堆外, 返回新的句柄; 如果是TagIdVector, id和tag也会一并复制
+	 * copy a vector off heap, and return a new handle; id and tag are copied too for a TagIdVector
+	 * @param vector 向量 - the vector
+	 * @return 句柄 - the handle
+	 */
+	public ArenaVector allocate(SparseVector vector)
+	{
+		int count = vector.divCount();
+		String[] names = new String[count];
+		double[] values = new double[count];
+		int i = 0;
+		for (Map.Entry<String, Double> entry : vector.getEntries()){
+			names[i] = entry.getKey();
+			values[i] = entry.getValue();
+			i++;
+		}
+		Long id = null;
+		String tag = null;
+		if (vector instanceof TagIdVector){
+			id = ((TagIdVector)vector).id;
+			tag = ((TagIdVector)vector).tag;
+		}
+		ArenaVector handle = allocate(id, names, values);
+		handle.tag = tag;
+		return handle;
+	}
+
+	/**
+	 * 把一组向量复制到堆外
+	 * copy a set of vectors off heap
+	 * @param vectors 向量组 - the vectors
+	 * @return 与之一一对应的句柄 - handles for each vector
+	 */
+	public ArenaVector[] allocateAll(SparseVector[] vectors)
+	{
+		ArenaVector[] handles = new ArenaVector[vectors.length];
+		for (int i=0; i<vectors.length; i++){
+			handles[i] = vectors[i]==null ? null : allocate(vectors[i]);
+		}
+		return handles;
+	}
+
+	//找到能容纳count个维度的块 - find a slab for count divisions
+	private Slab slabFor(int count)
+	{
+		if (!slabs.isEmpty()){
+			Slab current = slabs.get(slabs.size()-1);
+			if (current.capacity - current.used >= count){
+				return current;
+			}
+		}
+		Slab slab = null;
+		for (int i=0; i<freeSlabs.size(); i++){
+			if (freeSlabs.get(i).capacity>=count){
+				slab = freeSlabs.remove(i);
+				break;
+			}
+		}
+		if (slab==null){
+			//超过块大小的向量单独占一块 - a vector larger than the slab size gets a dedicated slab
+			slab = new Slab(Math.max(slabEntries, count));
+		}
+		slabs.add(slab);
+		return slab;
+	}
+
+	//维度名称的编号, 不存在时新建 - index of a division name, created when missing
+	private int indexOf(String divName)
+	{
+		Integer index = divIndexes.get(divName);
+		if (index!=null){
+			return index;
+		}
+		String[] names = divNames;
+		if (divNameCount==names.length){
+			names = Arrays.copyOf(names, names.length*2);
+		}
+		names[divNameCount] = divName;
+		divNames = names;
+		divIndexes.put(divName, divNameCount);
+		return divNameCount++;
+	}
+
+	//查找维度名称的编号, 不存在时返回-1 - look up index of a division name, -1 if missing
+	int lookup(String divName)
+	{
+		Integer index = divIndexes.get(divName);
+		return index==null ? -1 : index;
+	}
+
+	//维度编号对应的名称 - division name of an index
+	String nameOf(int index)
+	{
+		return divNames[index];
+	}
+
+	//当前代数, 只增不减 - current generation, never decreases
+	int generation()
+	{
+		return generation;
+	}
+
+	//检查句柄是否仍然有效 - check whether a handle is still valid
+	void checkValid(int handleGeneration)
+	{
+		if (handleGeneration!=generation){
+			throw new IllegalStateException(closed ? "向量存储区已关闭" : "向量存储区已清空, 句柄失效");
+		}
+	}
+
+	private void checkOpen()
+	{
+		if (closed){
+			throw new IllegalStateException("向量存储区已关闭");
+		}
+	}
+
+	/**
+	 * 使所有句柄失效, 已分配的块保留下来供以后重复使用; 维度字典保持不变
+	 * 调用时不能有其他线程正在读取句柄, 见类说明
+	 * invalidate all handles, and keep allocated slabs for reuse; the division dictionary is kept.
+	 * no other thread may be reading handles meanwhile, see the class description
+	 */
+	public synchronized void clear()
+	{
+		checkOpen();
+		for (Slab slab : slabs){
+			slab.used = 0;
+			freeSlabs.add(slab);
+		}
+		slabs.clear();
+		vectorCount = 0;
+		generation++;
+	}
+
+	/**
+	 * 关闭存储区: 使所有句柄失效, 并一次性释放所有块; 调用时不能有其他线程正在读取句柄
+	 * close the arena: invalidate all handles and drop all slabs at once; no other thread may be reading handles meanwhile
+	 */
+	@Override
+	public synchronized void close()
+	{
+		if (closed){
+			return;
+		}
+		logger.debug("关闭向量存储区, 释放"+(slabs.size()+freeSlabs.size())+"个块, "+allocatedBytes()+"字节");
+		closed = true;
+		generation++;
+		slabs.clear();
+		freeSlabs.clear();
+		vectorCount = 0;
+	}
+
+	/**
+	 * 当前有效的向量个数
+	 * count of valid vectors
+	 */
+	public synchronized int vectorCount()
+	{
+		return vectorCount;
+	}
+
+	/**
+	 * 字典中的维度个数
+	 * count of divisions in the dictionary
+	 */
+	public int divNameCount()
+	{
+		return divIndexes.size();
+	}
+
+	/**
+	 * 已分配的堆外内存字节数(包括可重复使用的块)
+	 * bytes of allocated off-heap memory(including slabs to be reused)
+	 */
+	public synchronized long allocatedBytes()
+	{
+		long entries = 0;
+		for (Slab slab : slabs){
+			entries += slab.capacity;
+		}
+		for (Slab slab : freeSlabs){
+			entries += slab.capacity;
+		}
+		return entries * (Integer.BYTES + Double.BYTES);
+	}
+
+	public boolean isClosed()
+	{
+		return closed;
+	}
+}
@@ -0,0 +1,346 @@
+package com.nuanxinli.ai.vector;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import junit.framework.TestCase;
+
+/**
+ * 检查点的测试: 中断后续用, 不同任务或不同迭代不会误用检查点, 损坏的文件会被忽略
+ * 保存时只追加日志, 完成时合并成快照, 日志中写了一半的记录和旧快照的日志会被忽略
+ * tests of checkpoints: resuming after an interruption, no reuse across different jobs or iterations, and corrupt files are ignored.
+ * saves only append to the log, which is merged into the snapshot on completion, and half written records or logs of an older snapshot are ignored
+ * @author 宋辉(Song Hui)
+ *
+ */
+public class CheckpointerTest extends TestCase {
+
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		file = File.createTempFile("checkpoint", ".bin");
+		file.delete();
+	}
+
+	@Override
+	protected void tearDown()
+	{
+		file.delete();
+		new File(file.getPath()+".tmp").delete();
+		logFile().delete();
+	}
+
+	private File logFile()
+	{
+		return new File(file.getPath()+".log");
+	}
+
+	//在第failAt次调用时中断的聚类 - clustering interrupted on call failAt
+	private void interruptedAggregate(SparseVector[] points, SparseVector[] centers, int failAt)
+	{
+		try {
+			SparseVector.aggregate(points, centers, nearestRule(new AtomicInteger(), failAt), new Checkpointer(file, 1, 0));
+			fail();
+		} catch (IllegalStateException e) {
+			//中断 - interrupted
+		}
+	}
+
+	private static TagIdVector vector(long id, String name, double value)
+	{
+		return new TagIdVector(id, new String[]{name}, new double[]{value});
+	}
+
+	private static TagIdVector center(String tag, String name)
+	{
+		TagIdVector center = new TagIdVector(null, new String[]{name}, new double[]{1});
+		center.tag = tag;
+		return center;
+	}
+
+	private static SparseVector[] points()
+	{
+		SparseVector[] points = new SparseVector[10];
+		for (int i=0; i<points.length; i++){
+			points[i] = new SparseVector(new String[]{"x", "y"}, new double[]{i, 10-i});
+		}
+		return points;
+	}
+
+	//在第failAt次调用时抛出异常的计分规则, 模拟运行中断 - a rule failing on call failAt, to simulate an interruption
+	private static BiFunction<SparseVector, SparseVector[], Integer> nearestRule(AtomicInteger calls, int failAt)
+	{
+		return (vector, centers)->{
+			if (calls.incrementAndGet()==failAt){
+				throw new IllegalStateException("模拟中断 - simulated interruption");
+			}
+			return vector.nearest(centers);
+		};
+	}
+
+	public void testAggregateResumesAfterInterruption()
+	{
+		SparseVector[] points = points();
+		SparseVector[] centers = {points[0], points[9]};
+		List<List<SparseVector>> expected = SparseVector.aggregate(points, centers, (v, c)->v.nearest(c));
+
+		Checkpointer checkpointer = new Checkpointer(file, 1, 0);
+		AtomicInteger calls = new AtomicInteger();
+		try {
+			SparseVector.aggregate(points, centers, nearestRule(calls, 7), checkpointer);
+			fail();
+		} catch (IllegalStateException e) {
+			//中断 - interrupted
+		}
+		assertEquals(5, checkpointer.restore().lastProcessed);
+
+		calls.set(0);
+		List<List<SparseVector>> resumed = SparseVector.aggregate(points, centers, nearestRule(calls, -1), new Checkpointer(file, 1, 0));
+		assertEquals("只处理剩下的向量 - only the remaining vectors are processed", 4, calls.get());
+		assertEquals(expected, resumed);
+		assertTrue(new Checkpointer(file, 1, 0).restore().complete);
+	}
+
+	public void testNewIterationWithNewCentersIsNotServedFromCheckpoint()
+	{
+		SparseVector[] points = points();
+		Checkpointer checkpointer = new Checkpointer(file, 1, 0);
+		SparseVector[] first = {points[0], points[1]};
+		SparseVector.aggregate(points, first, (v, c)->v.nearest(c), checkpointer);
+
+		//第二轮换了中心, 结果必须按新中心重新计算 - the second round uses new centers, results must be recomputed with them
+		SparseVector[] second = {points[2], points[8]};
+		List<List<SparseVector>> expected = SparseVector.aggregate(points, second, (v, c)->v.nearest(c));
+		assertEquals(expected, SparseVector.aggregate(points, second, (v, c)->v.nearest(c), checkpointer));
+
+		//已完成的同一任务也不会被续用, 而是重新计算 - even the same completed job is recomputed instead of resumed
+		AtomicInteger calls = new AtomicInteger();
+		assertEquals(expected, SparseVector.aggregate(points, second, nearestRule(calls, -1), checkpointer));
+		assertEquals(points.length, calls.get());
+	}
+
+	public void testClusteringResumesFromRestoredCentersAndIteration()
+	{
+		SparseVector[] points = points();
+		SparseVector[] centers = {points[1], points[6]};
+		AtomicInteger calls = new AtomicInteger();
+		try {
+			SparseVector.aggregate(points, centers, nearestRule(calls, 4), new Checkpointer(file, 1, 0), 3);
+			fail();
+		} catch (IllegalStateException e) {
+			//中断 - interrupted
+		}
+
+		//重启后从检查点读出中心和迭代次数, 继续这一轮 - after a restart, read centers and iteration from the checkpoint and continue the round
+		Checkpointer checkpointer = new Checkpointer(file, 1, 0);
+		Checkpointer.State state = checkpointer.restore();
+		assertEquals(3, state.iteration);
+		calls.set(0);
+		List<List<SparseVector>> resumed = SparseVector.aggregate(points, state.centers, nearestRule(calls, -1), checkpointer, state.iteration);
+		assertEquals(points.length-3, calls.get());
+		assertEquals(SparseVector.aggregate(points, centers, (v, c)->v.nearest(c)), resumed);
+
+		//换了迭代次数就不会续用 - a different iteration is not resumed
+		calls.set(0);
+		try {
+			SparseVector.aggregate(points, centers, nearestRule(calls, 2), checkpointer, 4);
+			fail();
+		} catch (IllegalStateException e) {
+			//中断 - interrupted
+		}
+		calls.set(0);
+		SparseVector.aggregate(points, centers, nearestRule(calls, -1), checkpointer, 5);
+		assertEquals(points.length, calls.get());
+	}
+
+	public void testTagDoesNotReuseCheckpointOfAnotherJob()
+	{
+		TagIdVector[] centers = {center("A", "a"), center("B", "b")};
+		Checkpointer checkpointer = new Checkpointer(file, 1, 0);
+
+		//第一个任务在第2个向量处中断 - the first job is interrupted at its second vector
+		TagIdVector broken = new TagIdVector(2L, new String[]{"a"}, new double[]{1}){
+			@Override
+			public double dotProduct(SparseVector vector)
+			{
+				throw new IllegalStateException("模拟中断 - simulated interruption");
+			}
+		};
+		TagIdVector[] job1 = {vector(1, "a", 1), broken};
+		try {
+			TagIdVector.tag(job1, centers, null, checkpointer);
+			fail();
+		} catch (IllegalStateException e) {
+			//中断 - interrupted
+		}
+
+		//向量个数相同的另一个任务, 必须重新打标签 - another job of the same size must be tagged from scratch
+		TagIdVector[] job2 = {vector(3, "b", 1), vector(4, "b", 2)};
+		TagIdVector.tag(job2, centers, null, checkpointer);
+		assertEquals("B", job2[0].tag);
+		assertEquals("B", job2[1].tag);
+
+		//完成之后再运行同样大小的第三个任务 - a third job of the same size after completion
+		TagIdVector[] job3 = {vector(5, "a", 1), vector(6, "a", 1)};
+		TagIdVector.tag(job3, centers, null, checkpointer);
+		assertEquals("A", job3[0].tag);
+		assertEquals("A", job3[1].tag);
+	}
+
+	public void testTagIgnoresAssignmentsOutOfRange()
+	{
+		TagIdVector[] centers = {center("A", "a"), center("B", "b")};
+		TagIdVector[] vectors = {vector(1, "b", 1), vector(2, "a", 1)};
+		Checkpointer checkpointer = new Checkpointer(file, 1, 0);
+		TagIdVector.tag(vectors, centers, null, checkpointer);
+
+		//改成一个未完成的检查点, 其中的中心索引超出范围 - turn it into an unfinished checkpoint with an out of range center index
+		Checkpointer.State state = checkpointer.restore();
+		state.complete = false;
+		state.assignments[0] = 5;
+		checkpointer.save(state);
+
+		vectors[0].tag = null;
+		TagIdVector.tag(vectors, centers, null, checkpointer);
+		assertEquals("B", vectors[0].tag);
+		assertEquals("A", vectors[1].tag);
+	}
+
+	public void testCorruptOrTruncatedFileStartsOver() throws IOException
+	{
+		SparseVector[] points = points();
+		SparseVector[] centers = {points[0], points[9]};
+		List<List<SparseVector>> expected = SparseVector.aggregate(points, centers, (v, c)->v.nearest(c));
+		Checkpointer checkpointer = new Checkpointer(file, 1, 0);
+		AtomicInteger calls = new AtomicInteger();
+		try {
+			SparseVector.aggregate(points, centers, nearestRule(calls, 6), checkpointer);
+			fail();
+		} catch (IllegalStateException e) {
+			//中断 - interrupted
+		}
+
+		//截断 - truncated
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+			raf.setLength(raf.length()/2);
+		}
+		assertRestoreFails(checkpointer);
+		calls.set(0);
+		assertEquals(expected, SparseVector.aggregate(points, centers, nearestRule(calls, -1), checkpointer));
+		assertEquals(points.length, calls.get());
+
+		//改写其中的字节 - overwritten bytes
+		Checkpointer.State state = checkpointer.restore();
+		state.complete = false;
+		state.lastProcessed = 4;
+		checkpointer.save(state);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+			for (long position=16; position<raf.length(); position+=7){
+				raf.seek(position);
+				raf.write(0x7f);
+			}
+		}
+		assertRestoreFails(checkpointer);
+		calls.set(0);
+		assertEquals(expected, SparseVector.aggregate(points, centers, nearestRule(calls, -1), checkpointer));
+		assertEquals(points.length, calls.get());
+	}
+
+	public void testSavesAppendToLogAndCompactOnCompletion() throws IOException
+	{
+		SparseVector[] points = points();
+		SparseVector[] centers = {points[0], points[9]};
+		interruptedAggregate(points, centers, 7);
+
+		//第一次保存写快照, 之后的保存都追加到日志 - the first save writes the snapshot, later saves append to the log
+		byte[] snapshot = Files.readAllBytes(file.toPath());
+		assertTrue(logFile().exists());
+		assertEquals(5, new Checkpointer(file, 1, 0).restore().lastProcessed);
+		File log = new File(file.getPath()+".saved");
+		Files.move(logFile().toPath(), log.toPath());
+		try {
+			assertEquals("没有日志时只有快照的内容 - only the snapshot without the log", 0, new Checkpointer(file, 1, 0).restore().lastProcessed);
+		} finally {
+			Files.move(log.toPath(), logFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		//续用时第一次保存把日志合并成新的快照, 完成时日志被删除 - resuming, the first save merges the log into a new snapshot, and the log is deleted on completion
+		AtomicInteger calls = new AtomicInteger();
+		List<List<SparseVector>> resumed = SparseVector.aggregate(points, centers, nearestRule(calls, -1), new Checkpointer(file, 1, 0));
+		assertEquals(4, calls.get());
+		assertEquals(SparseVector.aggregate(points, centers, (v, c)->v.nearest(c)), resumed);
+		assertFalse(logFile().exists());
+		assertFalse(Arrays.equals(snapshot, Files.readAllBytes(file.toPath())));
+		Checkpointer.State state = new Checkpointer(file, 1, 0).restore();
+		assertTrue(state.complete);
+		assertEquals(points.length-1, state.lastProcessed);
+	}
+
+	public void testHalfWrittenLogRecordIsIgnored() throws IOException
+	{
+		SparseVector[] points = points();
+		SparseVector[] centers = {points[0], points[9]};
+		interruptedAggregate(points, centers, 7);
+
+		//最后一条记录写了一半, 之前的记录仍然有效 - the last record is half written, records before it stay valid
+		try (RandomAccessFile raf = new RandomAccessFile(logFile(), "rw")){
+			raf.setLength(raf.length()-3);
+		}
+		assertEquals(4, new Checkpointer(file, 1, 0).restore().lastProcessed);
+		AtomicInteger calls = new AtomicInteger();
+		List<List<SparseVector>> resumed = SparseVector.aggregate(points, centers, nearestRule(calls, -1), new Checkpointer(file, 1, 0));
+		assertEquals(5, calls.get());
+		assertEquals(SparseVector.aggregate(points, centers, (v, c)->v.nearest(c)), resumed);
+
+		//改写记录中的分配结果, 校验和不匹配, 该记录及其后的记录都被忽略 - an overwritten assignment fails the checksum, the record and those after it are ignored
+		interruptedAggregate(points, centers, 7);
+		try (RandomAccessFile raf = new RandomAccessFile(logFile(), "rw")){
+			//文件头12字节, 第一条记录(第1个向量)是from、count、1个分配结果和校验和共20字节, 改写第二条记录的分配结果
+			//a 12 byte header, the first record(vector 1) takes from, count, one assignment and the checksum, 20 bytes; overwrite the assignment of the second record
+			raf.seek(12+20+8);
+			raf.writeInt(1);
+		}
+		assertEquals(1, new Checkpointer(file, 1, 0).restore().lastProcessed);
+	}
+
+	public void testLogOfAnotherSnapshotIsIgnored() throws IOException
+	{
+		SparseVector[] points = points();
+		SparseVector[] centers = {points[0], points[9]};
+		interruptedAggregate(points, centers, 7);
+		File log = new File(file.getPath()+".saved");
+		Files.copy(logFile().toPath(), log.toPath());
+		try {
+			//同一任务重新开始, 只保存了快照; 放回上一次运行的日志也不会被应用
+			//the same job starts over and only saves a snapshot; the log of the previous run put back is not applied
+			new Checkpointer(file, 1, 0).delete();
+			assertFalse(logFile().exists());
+			interruptedAggregate(points, centers, 2);
+			assertFalse(logFile().exists());
+			Files.copy(log.toPath(), logFile().toPath());
+			assertEquals(0, new Checkpointer(file, 1, 0).restore().lastProcessed);
+		} finally {
+			log.delete();
+		}
+	}
+
+	private static void assertRestoreFails(Checkpointer checkpointer)
+	{
+		try {
+			checkpointer.restore();
+			fail("损坏的检查点应该无法读取 - a corrupt checkpoint should not be readable");
+		} catch (UncheckedIOException e) {
+			//预期的 - expected
+		}
+	}
+}
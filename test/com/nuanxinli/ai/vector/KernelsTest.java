@@ -0,0 +1,127 @@
+package com.nuanxinli.ai.vector;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * 数组运算内核的测试: 标量实现与Vector API实现结果一致
+ * tests of array kernels: the scalar and the Vector API implementations agree
+ * @author 宋辉(Song Hui)
+ *
+ */
+public class KernelsTest extends TestCase {
+
+	//覆盖空数组、不足一个SIMD宽度、整倍数和带尾部的长度 - covers empty, shorter than one SIMD width, exact multiples and lengths with tails
+	private static final int[] LENGTHS = {0, 1, 3, 4, 7, 8, 15, 16, 17, 63, 64, 65, 1000, 1027};
+
+	private final Random random = new Random(20261018L);
+
+	//JDK 17以上并且加入了jdk.incubator.vector时返回Vector API实现, 否则返回null
+	//the Vector API implementation on JDK 17+ with jdk.incubator.vector, otherwise null
+	private static KernelProvider vectorKernels()
+	{
+		try {
+			KernelProvider provider = (KernelProvider) Class.forName("com.nuanxinli.ai.vector.VectorKernels").getDeclaredConstructor().newInstance();
+			provider.sum(new double[]{1}, 1);
+			return provider;
+		} catch (Exception | LinkageError e) {
+			return null;
+		}
+	}
+
+	private double[] randomDoubles(int length)
+	{
+		double[] values = new double[length];
+		for (int i=0; i<length; i++){
+			values[i] = random.nextDouble()*2 - 1;
+		}
+		return values;
+	}
+
+	private float[] randomFloats(int length)
+	{
+		float[] values = new float[length];
+		for (int i=0; i<length; i++){
+			values[i] = random.nextFloat()*2 - 1;
+		}
+		return values;
+	}
+
+	//下标可以重复, 也不必有序 - indexes may repeat and need not be sorted
+	private int[] randomIndexes(int length, int range)
+	{
+		int[] indexes = new int[length];
+		for (int i=0; i<length; i++){
+			indexes[i] = random.nextInt(range);
+		}
+		return indexes;
+	}
+
+	public void testScalarKernelsMatchPlainLoops()
+	{
+		KernelProvider scalar = new ScalarKernels();
+		for (int length : LENGTHS){
+			double[] a = randomDoubles(length+3);
+			double[] b = randomDoubles(length+3);
+			int[] indexes = randomIndexes(length+3, b.length);
+			double sum = 0, squares = 0, dot = 0, gathered = 0;
+			for (int i=0; i<length; i++){
+				sum += a[i];
+				squares += a[i]*a[i];
+				dot += a[i]*b[i];
+				gathered += a[i]*b[indexes[i]];
+			}
+			assertEquals(sum, scalar.sum(a, length), 1e-9);
+			assertEquals(squares, scalar.sumOfSquares(a, length), 1e-9);
+			assertEquals(dot, scalar.dot(a, b, length), 1e-9);
+			assertEquals(gathered, scalar.gatherDot(indexes, a, length, b), 1e-9);
+		}
+	}
+
+	public void testVectorKernelsMatchScalarKernels()
+	{
+		KernelProvider vector = vectorKernels();
+		if (vector==null){
+			//Vector API不可用 - Vector API unavailable
+			return;
+		}
+		KernelProvider scalar = new ScalarKernels();
+		for (int length : LENGTHS){
+			//数组比length长, 确保两种实现都只读取前length个元素 - arrays are longer than length, to make sure only the first length elements are read
+			double[] a = randomDoubles(length+5);
+			double[] b = randomDoubles(length+5);
+			assertEquals("sum "+length, scalar.sum(a, length), vector.sum(a, length), 1e-9);
+			assertEquals("sumOfSquares "+length, scalar.sumOfSquares(a, length), vector.sumOfSquares(a, length), 1e-9);
+			assertEquals("dot "+length, scalar.dot(a, b, length), vector.dot(a, b, length), 1e-9);
+			int[] indexes = randomIndexes(length+5, b.length);
+			assertEquals("gatherDot "+length, scalar.gatherDot(indexes, a, length, b), vector.gatherDot(indexes, a, length, b), 1e-9);
+
+			float[] fa = randomFloats(length+5);
+			float[] fb = randomFloats(length+5);
+			assertEquals("float dot "+length, scalar.dot(fa, fb, length), vector.dot(fa, fb, length), 1e-3f);
+		}
+	}
+
+	public void testDotBatchMatchesRowByRow()
+	{
+		KernelProvider vector = vectorKernels();
+		KernelProvider[] providers = (vector==null) ? new KernelProvider[]{new ScalarKernels()} : new KernelProvider[]{new ScalarKernels(), vector};
+		float[] query = randomFloats(67);
+		float[][] rows = new float[10][];
+		for (int r=0; r<rows.length; r++){
+			rows[r] = randomFloats(67);
+		}
+		for (KernelProvider provider : providers){
+			//只计算前7行, 其余得分保持不变 - only the first 7 rows, other scores stay untouched
+			float[] scores = new float[rows.length];
+			scores[9] = 42f;
+			provider.dotBatch(query, rows, 7, scores);
+			for (int r=0; r<7; r++){
+				assertEquals(provider.name(), RandomProjection.dot(query, rows[r]), scores[r], 1e-3f);
+			}
+			assertEquals(0f, scores[7]);
+			assertEquals(42f, scores[9]);
+		}
+	}
+}
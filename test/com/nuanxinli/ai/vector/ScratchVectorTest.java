@@ -0,0 +1,153 @@
+package com.nuanxinli.ai.vector;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import junit.framework.TestCase;
+
+/**
+ * 临时向量的测试: 载入、清空、删除维度和扩容, 点积和余弦相似性与普通向量一致, 以及重复打分时不分配内存
+ * tests of the scratch vector: load, clear, removeDiv and growth, dot products and cosine similarity agree with ordinary vectors,
+ * and repeated scoring allocates nothing
+ * @author 宋辉(Song Hui)
+ *
+ */
+public class ScratchVectorTest extends TestCase {
+
+	private static final String[] NAMES = {"a", "b", "c", "a", "d"};
+	private static final double[] VALUES = {1, 2, 3, 4, 5};
+
+	public void testLoadAndClear()
+	{
+		ScratchVector scratch = new ScratchVector(4);
+		scratch.load(NAMES, VALUES);
+		SparseVector expected = new SparseVector(NAMES, VALUES);
+		assertEquals(expected.divCount(), scratch.divCount());
+		assertEquals(4.0, scratch.getDivValue("a"));
+		assertEquals(expected.squareOfLength(false), scratch.squareOfLength(false), 1e-12);
+		assertEquals(expected.sum(false), scratch.sum(false), 1e-12);
+
+		scratch.id = 7L;
+		scratch.tag = "t";
+		scratch.clear();
+		assertEquals(0, scratch.divCount());
+		assertNull(scratch.getDivValue("a"));
+		assertNull(scratch.id);
+		assertNull(scratch.tag);
+
+		//只载入前两个 - load only the first two
+		scratch.load(NAMES, VALUES, 2);
+		assertEquals(2, scratch.divCount());
+		assertNull(scratch.getDivValue("c"));
+		assertSame(ScratchVector.local(), ScratchVector.local());
+		assertEquals(0, ScratchVector.local().divCount());
+	}
+
+	public void testRemoveDivAndAddDiv()
+	{
+		ScratchVector scratch = new ScratchVector();
+		scratch.load(NAMES, VALUES);
+		assertEquals(4.0, scratch.removeDiv("a"));
+		assertNull(scratch.removeDiv("a"));
+		assertNull(scratch.getDivValue("a"));
+		//删除后其余维度仍然能找到 - other divisions can still be found after a removal
+		assertEquals(2.0, scratch.getDivValue("b"));
+		assertEquals(3.0, scratch.getDivValue("c"));
+		assertEquals(5.0, scratch.getDivValue("d"));
+		scratch.addDiv("b", 1);
+		scratch.setDiv("e", 6);
+		assertEquals(3.0, scratch.getDivValue("b"));
+		assertEquals(new SparseVector(new String[]{"b", "c", "d", "e"}, new double[]{3, 3, 5, 6}).asMap(), scratch.asMap());
+	}
+
+	public void testEnsureCapacityKeepsDivisions()
+	{
+		ScratchVector scratch = new ScratchVector(2);
+		int count = 100;
+		for (int i=0; i<count; i++){
+			scratch.setDiv("d"+i, i);
+		}
+		assertTrue(scratch.capacity()>=count);
+		assertEquals(count, scratch.divCount());
+		for (int i=0; i<count; i++){
+			assertEquals((double)i, scratch.getDivValue("d"+i));
+		}
+		int capacity = scratch.capacity();
+		scratch.ensureCapacity(capacity*3);
+		assertEquals(count, scratch.divCount());
+		assertEquals(42.0, scratch.getDivValue("d42"));
+		//容量足够时, 重新载入不再扩容 - no growth when reloading within the capacity
+		capacity = scratch.capacity();
+		scratch.load(NAMES, VALUES);
+		assertEquals(capacity, scratch.capacity());
+		assertNull(scratch.getDivValue("d42"));
+	}
+
+	public void testDotProductAndCosineAgreeWithSparseVector()
+	{
+		SparseVector expected = new SparseVector(NAMES, VALUES);
+		SparseVector other = new SparseVector(new String[]{"a", "c", "x"}, new double[]{2, -1, 9});
+		ScratchVector scratch = new ScratchVector();
+		scratch.load(NAMES, VALUES);
+		ScratchVector scratchOther = new ScratchVector();
+		scratchOther.load(new String[]{"a", "c", "x"}, new double[]{2, -1, 9});
+		double dot = expected.dotProduct(other);
+		assertEquals(dot, scratch.dotProduct(other), 1e-12);
+		assertEquals(dot, other.dotProduct(scratch), 1e-12);
+		assertEquals(dot, scratch.dotProduct(scratchOther), 1e-12);
+		assertEquals(expected.cosineSimilarity(other), scratch.cosineSimilarity(other), 1e-12);
+		assertEquals(expected.cosineSimilarity(other), other.cosineSimilarity(scratch), 1e-12);
+		assertEquals(expected.squareOfDistance(other), scratch.squareOfDistance(other), 1e-12);
+		try (VectorArena arena = new VectorArena()){
+			ArenaVector handle = arena.allocate(other);
+			assertEquals(dot, scratch.dotProduct(handle), 1e-12);
+			assertEquals(dot, handle.dotProduct(scratch), 1e-12);
+		}
+	}
+
+	public void testRepeatedScoringAllocatesNothing()
+	{
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)){
+			//当前JVM不支持按线程统计分配 - per thread allocation is not supported by this JVM
+			return;
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)bean;
+		if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()){
+			return;
+		}
+		TagIdVector[] centers = new TagIdVector[3];
+		for (int c=0; c<centers.length; c++){
+			centers[c] = new TagIdVector(null, new String[]{"a", "b", "w"+c}, new double[]{c, 1, 2});
+			centers[c].tag = "c"+c;
+		}
+		ScratchVector scratch = new ScratchVector();
+		ScratchVector scratchOther = new ScratchVector();
+		scratchOther.load(NAMES, VALUES);
+		try (VectorArena arena = new VectorArena()){
+			ArenaVector handle = arena.allocate(centers[1]);
+			double expected = 0;
+			//先预热, 再统计 - warm up first, then measure
+			for (int round=0; round<2; round++){
+				long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+				double total = 0;
+				for (int i=0; i<10000; i++){
+					scratch.load(NAMES, VALUES);
+					total += scratch.tagBy(centers, null);
+					total += scratch.dotProduct(scratchOther);
+					total += scratch.dotProduct(handle);
+					total += handle.dotProduct(scratch);
+					total += centers[2].dotProduct(scratch);
+				}
+				long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+				if (round==0){
+					expected = total;
+				}else{
+					assertEquals(expected, total, 1e-6);
+					//统计本身可能有少量分配, 但远小于每次迭代一个对象 - measuring may allocate a little, far below one object per iteration
+					assertTrue("重复打分分配了"+allocated+"字节 - repeated scoring allocated "+allocated+" bytes", allocated<16*1024);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package com.nuanxinli.ai.vector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+/**
+ * 分片向量索引的测试: 与SparseVector上的原有方法结果一致, NaN得分、很大的k, 以及查询时并发插入和删除
+ * tests of the sharded vector index: agrees with original methods of SparseVector, NaN scores, huge k, and concurrent put/remove while querying
+ * @author 宋辉(Song Hui)
+ *
+ */
+public class ShardedVectorIndexTest extends TestCase {
+
+	private final Random random = new Random(29L);
+
+	private TagIdVector randomVector(long id, String prefix)
+	{
+		String[] names = new String[6];
+		double[] values = new double[6];
+		for (int i=0; i<names.length; i++){
+			names[i] = prefix + random.nextInt(40);
+			values[i] = random.nextDouble() + 0.1;
+		}
+		return new TagIdVector(id, names, values);
+	}
+
+	public void testAgreesWithSparseVectorMethods()
+	{
+		TagIdVector[] vectors = new TagIdVector[200];
+		try (ShardedVectorIndex index = new ShardedVectorIndex(4)){
+			for (int i=0; i<vectors.length; i++){
+				vectors[i] = randomVector(i, "d");
+				index.put(vectors[i]);
+			}
+			for (int q=0; q<20; q++){
+				TagIdVector query = randomVector(-1, "d");
+				assertEquals(query.cloest(vectors), index.cloest(query).getVector().id.intValue());
+				assertEquals(query.maxDotProduction(vectors), index.maxDotProduction(query).getVector().id.intValue());
+				assertEquals(query.nearest(vectors), index.nearest(query).getVector().id.intValue());
+			}
+		}
+	}
+
+	public void testEmptyVectorIsNeverTheClosest()
+	{
+		try (ShardedVectorIndex index = new ShardedVectorIndex(3)){
+			TagIdVector a = new TagIdVector(1L, new String[]{"x", "y"}, new double[]{1, 2});
+			TagIdVector b = new TagIdVector(2L, new String[]{"x", "z"}, new double[]{1, 5});
+			TagIdVector empty = new TagIdVector(3L, new String[0], new double[0]);
+			index.put(a);
+			index.put(b);
+			index.put(empty);
+
+			ShardedVectorIndex.Hit hit = index.cloest(a);
+			assertEquals(a.cloest(new SparseVector[]{a, b, empty}), hit.getVector().id.intValue()-1);
+			assertFalse(Double.isNaN(hit.getScore()));
+			for (ShardedVectorIndex.Hit each : index.topCloest(a, 10)){
+				assertFalse(Double.isNaN(each.getScore()));
+				assertNotSame(empty, each.getVector());
+			}
+			//只有NaN得分时, 没有结果 - no result when every score is NaN
+			assertNull(index.cloest(new TagIdVector(9L, new String[0], new double[0])));
+		}
+	}
+
+	public void testHugeK()
+	{
+		try (ShardedVectorIndex index = new ShardedVectorIndex(4)){
+			for (int i=0; i<50; i++){
+				index.put(randomVector(i, "d"));
+			}
+			TagIdVector query = randomVector(-1, "d");
+			List<ShardedVectorIndex.Hit> hits = index.topDotProduction(query, Integer.MAX_VALUE);
+			assertEquals(50, hits.size());
+			for (int i=1; i<hits.size(); i++){
+				assertTrue(hits.get(i-1).getScore()>=hits.get(i).getScore());
+			}
+			assertEquals(50, index.topNearest(query, Integer.MAX_VALUE).size());
+			assertTrue(index.topCloest(query, 0).isEmpty());
+		}
+	}
+
+	public void testDuplicateIdStillFillsK()
+	{
+		//模拟弱一致遍历两次遇到同一id: 两份id=1的向量都比其他向量好, 去重后仍要返回k个不同的id
+		//simulate a weakly consistent traversal meeting one id twice: both copies of id 1 beat all others, k distinct ids must still be returned
+		TagIdVector query = new TagIdVector(-1L, new String[]{"x"}, new double[]{1});
+		TagIdVector better = new TagIdVector(1L, new String[]{"x"}, new double[]{10});
+		TagIdVector worse = new TagIdVector(1L, new String[]{"x"}, new double[]{9});
+		TagIdVector two = new TagIdVector(2L, new String[]{"x"}, new double[]{5});
+		TagIdVector three = new TagIdVector(3L, new String[]{"x"}, new double[]{4});
+		for (TagIdVector[] traversal : new TagIdVector[][]{{worse, better, two, three}, {better, worse, two, three}, {two, worse, three, better}}){
+			ConcurrentHashMap<Long, TagIdVector> shard = new ConcurrentHashMap<Long, TagIdVector>(){
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				public Collection<TagIdVector> values()
+				{
+					return Arrays.asList(traversal);
+				}
+			};
+			List<ShardedVectorIndex.Hit> hits = ShardedVectorIndex.searchShard(shard, query, 2, (q, v)->q.dotProduct(v),
+					(h1, h2)->Double.compare(h2.getScore(), h1.getScore()));
+			assertEquals(2, hits.size());
+			assertSame(better, hits.get(0).getVector());
+			assertSame(two, hits.get(1).getVector());
+		}
+	}
+
+	public void testConcurrentPutAndRemoveWhileQuerying() throws Exception
+	{
+		//固定的向量一直在索引中, 临时向量被另外的线程反复插入、删除; 临时向量使用不同的维度, 不会影响固定向量的查询结果
+		//stable vectors stay in the index while transient ones are put and removed by other threads;
+		//transient vectors use other divisions, so they never change results of queries on stable vectors
+		int stableCount = 100;
+		TagIdVector[] stable = new TagIdVector[stableCount];
+		try (ShardedVectorIndex index = new ShardedVectorIndex(8)){
+			for (int i=0; i<stableCount; i++){
+				stable[i] = randomVector(i, "s");
+				index.put(stable[i]);
+			}
+			AtomicBoolean running = new AtomicBoolean(true);
+			AtomicReference<Throwable> failure = new AtomicReference<>();
+			CountDownLatch started = new CountDownLatch(2);
+			List<Thread> writers = new ArrayList<>();
+			for (int w=0; w<2; w++){
+				long base = 10000L * (w+1);
+				Thread writer = new Thread(()->{
+					Random local = new Random(base);
+					started.countDown();
+					try {
+						while (running.get()){
+							long id = base + local.nextInt(500);
+							if (local.nextBoolean()){
+								index.put(new TagIdVector(id, new String[]{"t"+local.nextInt(40)}, new double[]{local.nextDouble()+0.1}));
+							}else{
+								index.remove(id);
+							}
+						}
+					} catch (Throwable e) {
+						failure.set(e);
+					}
+				});
+				writers.add(writer);
+				writer.start();
+			}
+			started.await();
+			try {
+				for (int q=0; q<300; q++){
+					TagIdVector query = stable[q % stableCount];
+					int expected = query.maxDotProduction(stable);
+					assertEquals(expected, index.maxDotProduction(query).getVector().id.intValue());
+
+					List<ShardedVectorIndex.Hit> hits = index.topCloest(query, Integer.MAX_VALUE);
+					Set<Long> ids = new HashSet<>();
+					for (int i=0; i<hits.size(); i++){
+						assertTrue("重复的结果 - duplicated hit", ids.add(hits.get(i).getVector().id));
+						if (i>0){
+							assertTrue(hits.get(i-1).getScore()>=hits.get(i).getScore());
+						}
+					}
+					for (long id=0; id<stableCount; id++){
+						assertTrue("缺少固定向量 - missing stable vector "+id, ids.contains(id));
+					}
+				}
+			} finally {
+				running.set(false);
+				for (Thread writer : writers){
+					writer.join();
+				}
+			}
+			assertNull(failure.get());
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package com.nuanxinli.ai.vector;
+
+import junit.framework.TestCase;
+
+/**
+ * 相似性结果缓存的测试: 命中、未命中和淘汰的计数, LRU淘汰顺序, 中心被替换或就地修改后缓存失效, 计算期间中心改变的结果不被缓存
+ * tests of the similarity cache: hit, miss and eviction counts, LRU eviction order, invalidation when centers are replaced or modified in place,
+ * and results computed while centers changed are not cached
+ * @author 宋辉(Song Hui)
+ *
+ */
+public class SimilarityCacheTest extends TestCase {
+
+	private static SparseVector vector(double x, double y)
+	{
+		return new SparseVector(new String[]{"x", "y"}, new double[]{x, y});
+	}
+
+	private static SparseVector[] centers()
+	{
+		return new SparseVector[]{vector(1, 0), vector(0, 1), null};
+	}
+
+	public void testHitsMissesAndResults()
+	{
+		SparseVector[] centers = centers();
+		SimilarityCache cache = new SimilarityCache(centers, 10);
+		SparseVector query = vector(2, 3);
+		double[] dots = cache.dotProducts(query);
+		assertEquals(2.0, dots[0]);
+		assertEquals(3.0, dots[1]);
+		assertEquals("null中心按0计 - a null center scores 0", 0.0, dots[2]);
+		assertEquals(0, cache.hitCount());
+		assertEquals(1, cache.missCount());
+
+		//内容相同的另一个向量也命中 - another vector of the same content hits too
+		assertEquals(query.maxDotProduction(centers), cache.maxDotProduction(vector(2, 3)));
+		assertEquals(1, cache.hitCount());
+		//余弦相似性与点积分开缓存 - cosine similarities are cached apart from dot products
+		assertEquals(query.cloest(centers), cache.cloest(query));
+		assertEquals(2, cache.missCount());
+		assertEquals(query.cosineSimilarity(centers[1]), cache.cosineSimilarities(query)[1]);
+		assertEquals(2, cache.hitCount());
+		assertEquals(2, cache.size());
+		assertEquals(0.5, cache.hitRate());
+
+		//返回的是副本, 修改它不影响缓存 - a copy is returned, changing it does not affect the cache
+		cache.dotProducts(query)[0] = 42;
+		assertEquals(2.0, cache.dotProducts(query)[0]);
+	}
+
+	public void testEvictsLeastRecentlyUsed()
+	{
+		SimilarityCache cache = new SimilarityCache(centers(), 2);
+		SparseVector a = vector(1, 1);
+		SparseVector b = vector(2, 2);
+		SparseVector c = vector(3, 3);
+		cache.dotProducts(a);
+		cache.dotProducts(b);
+		//访问a之后, b是最近最少使用的 - after a is accessed, b is the least recently used
+		cache.dotProducts(a);
+		cache.dotProducts(c);
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.evictionCount());
+
+		long misses = cache.missCount();
+		cache.dotProducts(a);
+		cache.dotProducts(c);
+		assertEquals("a和c仍在缓存中 - a and c are still cached", misses, cache.missCount());
+		cache.dotProducts(b);
+		assertEquals("b已被淘汰 - b was evicted", misses+1, cache.missCount());
+		assertEquals(2, cache.evictionCount());
+	}
+
+	public void testSetCentersClearsCache()
+	{
+		SimilarityCache cache = new SimilarityCache(centers(), 10);
+		SparseVector query = vector(2, 3);
+		cache.dotProducts(query);
+		assertEquals(1, cache.size());
+
+		SparseVector[] replaced = {vector(0, 2)};
+		cache.setCenters(replaced);
+		assertEquals(0, cache.size());
+		assertSame(replaced, cache.getCenters());
+		double[] dots = cache.dotProducts(query);
+		assertEquals(1, dots.length);
+		assertEquals(6.0, dots[0]);
+		assertEquals(2, cache.missCount());
+	}
+
+	public void testInPlaceChangeOfCenterClearsCache()
+	{
+		SparseVector[] centers = centers();
+		SimilarityCache cache = new SimilarityCache(centers, 10);
+		SparseVector query = vector(2, 3);
+		assertEquals(2.0, cache.dotProducts(query)[0]);
+
+		//就地修改中心, 修改计数器变了, 下次查询时缓存被清空 - a center modified in place changes its counter, the next lookup clears the cache
+		centers[0].setDiv("x", 5);
+		assertEquals(10.0, cache.dotProducts(query)[0]);
+		assertEquals(0, cache.hitCount());
+		assertEquals(2, cache.missCount());
+		assertEquals(1, cache.size());
+
+		centers[1].addDiv("y", 1);
+		assertEquals(6.0, cache.dotProducts(query)[1]);
+		centers[0].removeDiv("x");
+		assertEquals(0.0, cache.dotProducts(query)[0]);
+		assertEquals(0, cache.hitCount());
+
+		assertEquals(0.0, cache.dotProducts(query)[0]);
+		assertEquals(1, cache.hitCount());
+	}
+
+	public void testResultComputedWhileCentersChangeIsNotCached()
+	{
+		SparseVector[] centers = centers();
+		SimilarityCache cache = new SimilarityCache(centers, 10);
+		//与第一个中心求点积时, 就地修改该中心, 模拟另一个线程在计算期间修改中心
+		//modifies the first center in place while dotted with it, as if another thread changed centers during the computation
+		SparseVector query = new SparseVector(new String[]{"x", "y"}, new double[]{2, 3}){
+			private boolean changed;
+
+			@Override
+			public double dotProduct(SparseVector vector)
+			{
+				double dot = super.dotProduct(vector);
+				if (!changed && vector==centers[0]){
+					changed = true;
+					vector.setDiv("x", 5);
+				}
+				return dot;
+			}
+		};
+		assertEquals("用修改之前的中心计算 - computed with the center before the change", 2.0, cache.dotProducts(query)[0]);
+		assertEquals("可能过期的结果不被缓存 - a possibly stale result is not cached", 0, cache.size());
+		assertEquals(10.0, cache.dotProducts(query)[0]);
+		assertEquals(0, cache.hitCount());
+		assertEquals(1, cache.size());
+		assertEquals(10.0, cache.dotProducts(query)[0]);
+		assertEquals(1, cache.hitCount());
+
+		//计算期间替换中心向量组, 结果同样不被缓存 - centers replaced during the computation, the result is not cached either
+		SparseVector[] replaced = {vector(0, 1)};
+		SparseVector other = new SparseVector(new String[]{"x", "y"}, new double[]{4, 4}){
+			@Override
+			public double dotProduct(SparseVector vector)
+			{
+				if (cache.getCenters()!=replaced){
+					cache.setCenters(replaced);
+				}
+				return super.dotProduct(vector);
+			}
+		};
+		cache.dotProducts(other);
+		assertSame(replaced, cache.getCenters());
+		assertEquals(0, cache.size());
+		assertEquals(4.0, cache.dotProducts(other)[0]);
+		assertEquals(1, cache.size());
+	}
+}
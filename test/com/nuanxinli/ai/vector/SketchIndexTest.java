@@ -0,0 +1,127 @@
+package com.nuanxinli.ai.vector;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * 草图索引的测试: 与精确的cloest/maxDotProduction相比的召回率, 两个阶段的余弦口径一致, null的处理, 以及超过初始容量后的扩容
+ * tests of the sketch index: recall against exact cloest/maxDotProduction, the same cosine measure in both stages, null handling, and growth past the initial capacity
+ * @author 宋辉(Song Hui)
+ *
+ */
+public class SketchIndexTest extends TestCase {
+
+	private final Random random = new Random(27L);
+
+	//长度差别较大的随机向量 - random vectors of quite different lengths
+	private SparseVector randomVector()
+	{
+		String[] names = new String[8];
+		double[] values = new double[8];
+		double scale = 0.5 + random.nextDouble()*3;
+		for (int i=0; i<names.length; i++){
+			names[i] = "d" + random.nextInt(60);
+			values[i] = random.nextDouble() * scale;
+		}
+		return new SparseVector(names, values);
+	}
+
+	private SparseVector[] randomVectors(int count)
+	{
+		SparseVector[] vectors = new SparseVector[count];
+		for (int i=0; i<count; i++){
+			vectors[i] = randomVector();
+		}
+		return vectors;
+	}
+
+	public void testRecallAgainstExactSearch()
+	{
+		SparseVector[] vectors = randomVectors(300);
+		SketchIndex index = new SketchIndex(new RandomProjection(128), vectors);
+		int queries = 100;
+		int cloestHits = 0;
+		int dotHits = 0;
+		for (int q=0; q<queries; q++){
+			SparseVector query = randomVector();
+			if (index.cloest(query, 30)==query.cloest(vectors)){
+				cloestHits++;
+			}
+			if (index.maxDotProduction(query, 30)==query.maxDotProduction(vectors)){
+				dotHits++;
+			}
+		}
+		assertTrue("cloest召回率过低 - cloest recall too low: "+cloestHits, cloestHits>=queries*0.9);
+		assertTrue("maxDotProduction召回率过低 - maxDotProduction recall too low: "+dotHits, dotHits>=queries*0.9);
+	}
+
+	public void testAllCandidatesGiveExactResults()
+	{
+		SparseVector[] vectors = randomVectors(100);
+		SketchIndex index = new SketchIndex(new RandomProjection(32), vectors);
+		for (int q=0; q<30; q++){
+			SparseVector query = randomVector();
+			assertEquals(query.cloest(vectors), index.cloest(query, vectors.length));
+			assertEquals(query.maxDotProduction(vectors), index.maxDotProduction(query, vectors.length));
+		}
+	}
+
+	public void testCoarseCosineUsesSameMeasureAsCosineSimilarity()
+	{
+		//同方向不同长度: cosineSimilarity除以长度的平方, 短的得分更高; 只取一个候选时, 第一阶段必须也选中短的
+		//same direction, different lengths: cosineSimilarity divides by squares of lengths, so the short one scores higher;
+		//with a single candidate, the first stage must pick the short one too
+		SparseVector longer = new SparseVector(new String[]{"x", "y"}, new double[]{2, 4});
+		SparseVector shorter = new SparseVector(new String[]{"x", "y"}, new double[]{1, 2});
+		SparseVector[] vectors = {longer, shorter};
+		SparseVector query = new SparseVector(new String[]{"x", "y"}, new double[]{1, 2});
+		SketchIndex index = new SketchIndex(new RandomProjection(16), vectors);
+		assertEquals(query.cloest(vectors), index.cloest(query, 1));
+		assertEquals(1, index.cloest(query, 1));
+	}
+
+	public void testNullsAreRejected()
+	{
+		RandomProjection projection = new RandomProjection(16);
+		try {
+			new SketchIndex(projection, new SparseVector[]{randomVector(), null});
+			fail();
+		} catch (IllegalArgumentException e) {
+			//预期的 - expected
+		}
+		SketchIndex index = new SketchIndex(projection);
+		try {
+			index.add(null);
+			fail();
+		} catch (IllegalArgumentException e) {
+			//预期的 - expected
+		}
+		index.add(randomVector());
+		try {
+			index.cloest(null, 1);
+			fail();
+		} catch (IllegalArgumentException e) {
+			//预期的 - expected
+		}
+		assertEquals(1, index.size());
+	}
+
+	public void testGrowsPastInitialCapacity()
+	{
+		//初始容量为16, 逐个加入时每次扩容后查询都要覆盖所有向量 - the initial capacity is 16, queries after each growth must cover all vectors
+		SketchIndex index = new SketchIndex(new RandomProjection(32));
+		assertEquals(-1, index.cloest(randomVector(), 5));
+		SparseVector[] vectors = randomVectors(70);
+		for (int i=0; i<vectors.length; i++){
+			assertEquals(i, index.add(vectors[i]));
+			SparseVector[] added = new SparseVector[i+1];
+			System.arraycopy(vectors, 0, added, 0, added.length);
+			SparseVector query = randomVector();
+			assertEquals(query.cloest(added), index.cloest(query, added.length));
+			assertEquals(query.maxDotProduction(added), index.maxDotProduction(query, added.length));
+			assertEquals(added.length, index.candidates(query, Integer.MAX_VALUE, true).length);
+		}
+		assertSame(vectors[69], index.get(69));
+	}
+}
@@ -0,0 +1,200 @@
+package com.nuanxinli.ai.vector;
+
+import java.lang.reflect.Field;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Random;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+/**
+ * 堆外向量存储区的测试: 句柄不在堆上保存维度, 点积和距离计算与堆上向量一致, 清空后缓存不再返回旧结果
+ * tests of the off-heap vector arena: handles keep no divisions on heap, dot products and distances agree with heap vectors, and caches stop serving old results after a clear
+ * @author 宋辉(Song Hui)
+ *
+ */
+public class VectorArenaTest extends TestCase {
+
+	private static final SparseVector A = new SparseVector(new String[]{"a", "b", "c"}, new double[]{1, 2, 3});
+	private static final SparseVector B = new SparseVector(new String[]{"b", "c", "d"}, new double[]{4, 1, 2});
+
+	private final Random random = new Random(20261018L);
+
+	public void testHandleHasNoHeapMap() throws Exception
+	{
+		try (VectorArena arena = new VectorArena()){
+			ArenaVector handle = arena.allocate(A);
+			Field divMap = SparseVector.class.getDeclaredField("divMap");
+			divMap.setAccessible(true);
+			assertNull(divMap.get(handle));
+			assertEquals(3, handle.divCount());
+			assertEquals(2.0, handle.getDivValue("b"));
+		}
+	}
+
+	public void testDistanceMatchesDifferenceVector()
+	{
+		double expected = A.minus(B).squareOfLength(false);
+		assertEquals(expected, A.squareOfDistance(B), 1e-9);
+		assertEquals(Math.sqrt(expected), A.distance(B), 1e-9);
+		assertEquals(0.0, A.squareOfDistance(A));
+		try (VectorArena arena = new VectorArena()){
+			ArenaVector handleA = arena.allocate(A);
+			ArenaVector handleB = arena.allocate(B);
+			assertEquals(expected, handleA.squareOfDistance(B), 1e-9);
+			assertEquals(expected, A.squareOfDistance(handleB), 1e-9);
+			assertEquals(expected, handleA.squareOfDistance(handleB), 1e-9);
+			assertEquals(1, B.nearest(new SparseVector[]{handleA, handleB}));
+		}
+	}
+
+	public void testDistanceOfLargeCoordinatesKeepsPrecision()
+	{
+		//坐标很大而差很小时, |a|²+|b|²-2a·b会抵消掉全部有效数字 - |a|²+|b|²-2a·b cancels all significant digits for large coordinates with small differences
+		SparseVector a = new SparseVector(new String[]{"x"}, new double[]{1e8});
+		SparseVector b = new SparseVector(new String[]{"x"}, new double[]{1e8+1});
+		assertEquals(1.0, a.squareOfDistance(b));
+		SparseVector p = new SparseVector(new String[]{"x", "y"}, new double[]{1e9, 0.5});
+		SparseVector q1 = new SparseVector(new String[]{"x", "y"}, new double[]{1e9, 1.2});
+		SparseVector q2 = new SparseVector(new String[]{"x", "y"}, new double[]{1e9, 0.4});
+		assertEquals(1, p.nearest(new SparseVector[]{q1, q2}));
+		try (VectorArena arena = new VectorArena()){
+			ArenaVector handleA = arena.allocate(a);
+			ArenaVector handleB = arena.allocate(b);
+			assertEquals(1.0, handleA.squareOfDistance(handleB));
+			assertEquals(1.0, handleA.squareOfDistance(b));
+			assertEquals(1.0, a.squareOfDistance(handleB));
+			ArenaVector handleP = arena.allocate(p);
+			assertEquals(1, handleP.nearest(new SparseVector[]{arena.allocate(q1), arena.allocate(q2)}));
+			assertEquals(1, p.nearest(new SparseVector[]{arena.allocate(q1), arena.allocate(q2)}));
+		}
+	}
+
+	public void testRemoveDivKeepsDistanceFresh()
+	{
+		SparseVector vector = new SparseVector(new String[]{"a", "b"}, new double[]{3, 4});
+		assertEquals(25.0, vector.squareOfDistance(null), 1e-9);
+		vector.removeDiv("b");
+		assertEquals(9.0, vector.squareOfDistance(new SparseVector()), 1e-9);
+	}
+
+	public void testCacheDropsResultsAfterClear()
+	{
+		VectorArena arena = new VectorArena();
+		SimilarityCache cache = new SimilarityCache(new SparseVector[]{arena.allocate(A), arena.allocate(B)}, 16);
+		assertEquals(A.dotProduct(B), cache.dotProducts(B)[0], 1e-9);
+		assertEquals(1, cache.size());
+		arena.clear();
+		try {
+			cache.dotProducts(B);
+			fail("存储区清空后不应再返回缓存结果 - no cached result should be served after the arena is cleared");
+		} catch (IllegalStateException e) {
+			//句柄已失效 - handles are invalid
+		}
+		assertEquals(0, cache.size());
+		arena.close();
+	}
+
+	public void testTagArenaHandlesAgreesWithHeapVectors()
+	{
+		TagIdVector[] centers = new TagIdVector[5];
+		for (int c=0; c<centers.length; c++){
+			centers[c] = new TagIdVector(null, new String[]{"w"+c, "w"+(c+5), "missing"+c}, new double[]{1, 2, 3});
+			centers[c].tag = "c"+c;
+		}
+		centers[3] = null;
+		TagIdVector[] vectors = new TagIdVector[200];
+		for (int i=0; i<vectors.length; i++){
+			vectors[i] = new TagIdVector((long)i, new String[]{"w"+random.nextInt(12), "w"+random.nextInt(12), "w"+random.nextInt(12)},
+					new double[]{random.nextDouble(), random.nextDouble(), random.nextDouble()});
+		}
+		try (VectorArena arena = new VectorArena()){
+			ArenaVector[] handles = arena.allocateAll(vectors);
+			TagIdVector.tag(vectors, centers, 0.3);
+			TagIdVector.tag(handles, centers, 0.3);
+			for (int i=0; i<vectors.length; i++){
+				assertEquals(vectors[i].tag, handles[i].tag);
+			}
+		}
+	}
+
+	public void testSparseDotMergeAndGallop()
+	{
+		//长度相近时走归并, 相差8倍以上时走倍增查找 - similar lengths go through merging, lengths differing over 8 times through galloping
+		int[][] lengthPairs = {{0, 0}, {0, 5}, {5, 5}, {30, 40}, {3, 500}, {1, 2000}, {20, 20000}};
+		for (int[] pair : lengthPairs){
+			TreeMap<Integer, Double> mapA = randomSparse(pair[0], 30000);
+			TreeMap<Integer, Double> mapB = randomSparse(pair[1], 30000);
+			//让短的一方与长的一方至少有一部分重合 - make part of the short one overlap the long one
+			int copied = 0;
+			for (Integer index : mapB.keySet()){
+				if (copied++ >= pair[0]/2){
+					break;
+				}
+				mapA.put(index, random.nextDouble());
+			}
+			double expected = 0;
+			for (Integer index : mapA.keySet()){
+				Double valueB = mapB.get(index);
+				if (valueB!=null){
+					expected += mapA.get(index) * valueB;
+				}
+			}
+
+			//两个向量放在同一对缓冲区的不同位置, 检验offset的处理 - both vectors share one pair of buffers at different offsets
+			int offsetA = 7;
+			int offsetB = offsetA + mapA.size() + 11;
+			IntBuffer indexes = IntBuffer.allocate(offsetB + mapB.size() + 3);
+			DoubleBuffer values = DoubleBuffer.allocate(indexes.capacity());
+			fill(mapA, indexes, values, offsetA);
+			fill(mapB, indexes, values, offsetB);
+
+			double forward = ArenaVector.sparseDot(indexes, values, offsetA, mapA.size(), indexes, values, offsetB, mapB.size());
+			double backward = ArenaVector.sparseDot(indexes, values, offsetB, mapB.size(), indexes, values, offsetA, mapA.size());
+			assertEquals(pair[0]+"/"+pair[1], expected, forward, 1e-9);
+			assertEquals(pair[0]+"/"+pair[1], expected, backward, 1e-9);
+		}
+	}
+
+	public void testArenaDotProductUsesSameResultAsHeapVectors()
+	{
+		VectorArena arena = new VectorArena();
+		try {
+			SparseVector small = new SparseVector(new String[]{"a", "m", "z"}, new double[]{1, 2, 3});
+			String[] names = new String[300];
+			double[] values = new double[300];
+			for (int i=0; i<names.length; i++){
+				names[i] = (i%100==0) ? new String[]{"a", "m", "z"}[i/100] : "d"+i;
+				values[i] = i + 1;
+			}
+			SparseVector large = new SparseVector(names, values);
+			ArenaVector arenaSmall = arena.allocate(small);
+			ArenaVector arenaLarge = arena.allocate(large);
+			assertEquals(small.dotProduct(large), arenaSmall.dotProduct(arenaLarge), 1e-9);
+			assertEquals(small.dotProduct(large), arenaLarge.dotProduct(arenaSmall), 1e-9);
+			assertEquals(large.squareOfLength(false), arenaLarge.dotProduct(arenaLarge), 1e-6);
+		} finally {
+			arena.close();
+		}
+	}
+
+	private TreeMap<Integer, Double> randomSparse(int count, int range)
+	{
+		TreeMap<Integer, Double> map = new TreeMap<>();
+		while (map.size()<count){
+			map.put(random.nextInt(range), random.nextDouble()*2 - 1);
+		}
+		return map;
+	}
+
+	private static void fill(TreeMap<Integer, Double> map, IntBuffer indexes, DoubleBuffer values, int offset)
+	{
+		int position = offset;
+		for (java.util.Map.Entry<Integer, Double> entry : map.entrySet()){
+			indexes.put(position, entry.getKey());
+			values.put(position, entry.getValue());
+			position++;
+		}
+	}
+}